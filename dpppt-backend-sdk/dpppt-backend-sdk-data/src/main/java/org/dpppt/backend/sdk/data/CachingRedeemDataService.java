@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * Remembers the uuids which have been redeemed through this instance, so that replays of a token
+ * are rejected without a database round trip. Uuids which aren't in the cache are passed to the
+ * delegate, whose database stays the authority for all instances.
+ *
+ * <p>The cache is split into stripes by the hash of the uuid, each with its own lock and at most
+ * `maxSize / stripes` entries. Every uuid is kept with the received_at the database stores for it,
+ * and removed by {@link #expire(Duration)} once the database row has expired. Since the database is
+ * only cleaned by one instance, every instance has to call it on its own. Since received_at only
+ * grows, the entries of a stripe are in received_at order and expire from the head.
+ */
+public class CachingRedeemDataService implements RedeemDataService {
+
+  private final RedeemDataService delegate;
+  private final Stripe[] stripes;
+
+  /**
+   * @param delegate the data service writing to the database
+   * @param maxSize maximum number of cached uuids
+   * @param stripes number of independently locked parts of the cache
+   */
+  public CachingRedeemDataService(RedeemDataService delegate, int maxSize, int stripes) {
+    if (stripes <= 0 || maxSize < stripes) {
+      throw new IllegalArgumentException("maxSize must be at least the number of stripes");
+    }
+    this.delegate = delegate;
+    this.stripes = new Stripe[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new Stripe(maxSize / stripes);
+    }
+  }
+
+  @Override
+  public boolean checkAndInsertPublishUUID(String uuid) {
+    var stripe = stripeOf(uuid);
+    if (stripe.contains(uuid)) {
+      return false;
+    }
+    boolean inserted = delegate.checkAndInsertPublishUUID(uuid);
+    // either way the uuid is in the database now. The received_at of the row is the start of
+    // tomorrow if it was inserted by now, or earlier if it was inserted before
+    stripe.add(uuid, UTCInstant.today().plusDays(1).getTimestamp());
+    return inserted;
+  }
+
+  @Override
+  public void cleanDB(Duration retentionPeriod) {
+    delegate.cleanDB(retentionPeriod);
+    expire(retentionPeriod);
+  }
+
+  /**
+   * Removes the uuids whose received_at is older than the retention period, without touching the
+   * database.
+   */
+  public void expire(Duration retentionPeriod) {
+    long retentionTime = UTCInstant.now().minus(retentionPeriod).getTimestamp();
+    for (var stripe : stripes) {
+      stripe.removeReceivedBefore(retentionTime);
+    }
+  }
+
+  /** @return the number of cached uuids */
+  public int size() {
+    int size = 0;
+    for (var stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  private Stripe stripeOf(String uuid) {
+    return stripes[Math.floorMod(uuid.hashCode(), stripes.length)];
+  }
+
+  private static final class Stripe {
+    // received_at by uuid, in insertion order
+    private final LinkedHashMap<String, Long> receivedAt;
+
+    Stripe(int maxSize) {
+      this.receivedAt =
+          new LinkedHashMap<>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+              // forgotten uuids are still rejected by the database
+              return size() > maxSize;
+            }
+          };
+    }
+
+    synchronized boolean contains(String uuid) {
+      return receivedAt.containsKey(uuid);
+    }
+
+    synchronized void add(String uuid, long uuidReceivedAt) {
+      receivedAt.putIfAbsent(uuid, uuidReceivedAt);
+    }
+
+    synchronized void removeReceivedBefore(long retentionTime) {
+      Iterator<Long> it = receivedAt.values().iterator();
+      while (it.hasNext() && it.next() < retentionTime) {
+        it.remove();
+      }
+    }
+
+    synchronized int size() {
+      return receivedAt.size();
+    }
+  }
+}
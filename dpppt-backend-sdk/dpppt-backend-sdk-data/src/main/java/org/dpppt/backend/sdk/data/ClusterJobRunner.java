@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.zip.CRC32;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+/**
+ * Runs scheduled jobs once per interval for all instances sharing the database. Every instance
+ * schedules the job as before, and the first one whose schedule fires within an interval runs it.
+ * The others skip the job until the next interval starts.
+ *
+ * <p>On pgsql a session level advisory lock is held while the job runs, so that only one instance
+ * decides at a time. HSQLDB is only used by a single instance, so no lock is taken there. The last
+ * run of every job, with the instance which ran it and its duration, is kept in t_job_run.
+ */
+public class ClusterJobRunner {
+
+  private static final Logger logger = LoggerFactory.getLogger(ClusterJobRunner.class);
+
+  private static final String PGSQL = "pgsql";
+  // first key of all advisory locks taken by the runner, "DP3T" in ASCII
+  private static final int LOCK_NAMESPACE = 0x44503354;
+
+  private final String dbType;
+  private final NamedParameterJdbcTemplate jt;
+  private final String node;
+
+  /**
+   * @param dbType the type of the database, locks are only taken for pgsql
+   * @param dataSource the database shared by all instances
+   * @param node the name of this instance in t_job_run. If it is empty, pid@hostname is used.
+   */
+  public ClusterJobRunner(String dbType, DataSource dataSource, String node) {
+    this.dbType = dbType;
+    this.jt = new NamedParameterJdbcTemplate(dataSource);
+    this.node = node == null || node.isBlank() ? defaultNodeName() : node;
+  }
+
+  private static String defaultNodeName() {
+    return ManagementFactory.getRuntimeMXBean().getName();
+  }
+
+  public String getNode() {
+    return node;
+  }
+
+  /**
+   * Runs `job` unless it already ran in the current interval, on this or another instance. The
+   * intervals are aligned to the epoch, like release buckets. Exceptions thrown by the job are
+   * logged and recorded in t_job_run.
+   *
+   * @param jobName name of the job, unique within the cluster
+   * @param interval the job runs at most once per interval
+   * @param job the job
+   * @return true if the job ran on this instance
+   */
+  public boolean runOnce(String jobName, Duration interval, Runnable job) {
+    if (!dbType.equals(PGSQL)) {
+      return runIfDue(jobName, interval, job);
+    }
+    // the lock belongs to the session, so it must be released on the same connection. The job
+    // itself uses other connections, and no transaction is kept open while it runs.
+    Boolean ran =
+        jt.getJdbcTemplate()
+            .execute(
+                (ConnectionCallback<Boolean>)
+                    con -> {
+                      int lockKey = lockKey(jobName);
+                      if (!advisoryLock(con, "pg_try_advisory_lock", lockKey)) {
+                        logger.debug("Job " + jobName + " is running on another instance");
+                        return false;
+                      }
+                      try {
+                        return runIfDue(jobName, interval, job);
+                      } finally {
+                        advisoryLock(con, "pg_advisory_unlock", lockKey);
+                      }
+                    });
+    return Boolean.TRUE.equals(ran);
+  }
+
+  private boolean runIfDue(String jobName, Duration interval, Runnable job) {
+    var now = UTCInstant.now();
+    var intervalStart = now.roundToBucketStart(interval);
+    MapSqlParameterSource params =
+        new MapSqlParameterSource("job_name", jobName)
+            .addValue("node", node)
+            .addValue("started_at", now.getDate());
+    List<JobRun> lastRun =
+        jt.query("select * from t_job_run where job_name = :job_name", params, this::mapRow);
+    if (!lastRun.isEmpty() && !lastRun.get(0).getStartedAt().isBeforeEpochMillisOf(intervalStart)) {
+      logger.debug(
+          "Job " + jobName + " already ran on " + lastRun.get(0).getNode() + " in this interval");
+      return false;
+    }
+    String update =
+        "update t_job_run set node = :node, started_at = :started_at, finished_at = null,"
+            + " succeeded = null where job_name = :job_name";
+    if (jt.update(update, params) == 0) {
+      jt.update(
+          "insert into t_job_run (job_name, node, started_at) values (:job_name, :node,"
+              + " :started_at)",
+          params);
+    }
+
+    logger.info("Start job " + jobName + " on " + node);
+    boolean succeeded = false;
+    try {
+      job.run();
+      succeeded = true;
+    } catch (RuntimeException e) {
+      logger.error("Job " + jobName + " failed", e);
+    }
+    var finishedAt = UTCInstant.now();
+    params.addValue("finished_at", finishedAt.getDate()).addValue("succeeded", succeeded);
+    jt.update(
+        "update t_job_run set finished_at = :finished_at, succeeded = :succeeded where job_name ="
+            + " :job_name and node = :node and started_at = :started_at",
+        params);
+    logger.info(
+        "Finished job "
+            + jobName
+            + " on "
+            + node
+            + " in "
+            + finishedAt.getDuration(now).toMillis()
+            + "ms"
+            + (succeeded ? "" : " with errors"));
+    return true;
+  }
+
+  /** @return the last run of every job */
+  public List<JobRun> getLastRuns() {
+    return jt.query(
+        "select * from t_job_run order by job_name", new MapSqlParameterSource(), this::mapRow);
+  }
+
+  private JobRun mapRow(ResultSet rs, int rowNum) throws SQLException {
+    var finishedAt = rs.getTimestamp("finished_at");
+    boolean succeeded = rs.getBoolean("succeeded");
+    return new JobRun(
+        rs.getString("job_name"),
+        rs.getString("node"),
+        UTCInstant.ofEpochMillis(rs.getTimestamp("started_at").getTime()),
+        finishedAt == null ? null : UTCInstant.ofEpochMillis(finishedAt.getTime()),
+        !rs.wasNull() && succeeded);
+  }
+
+  private static int lockKey(String jobName) {
+    var crc = new CRC32();
+    crc.update(jobName.getBytes(StandardCharsets.UTF_8));
+    return (int) crc.getValue();
+  }
+
+  private static boolean advisoryLock(Connection con, String function, int lockKey)
+      throws SQLException {
+    try (PreparedStatement statement = con.prepareStatement("select " + function + "(?, ?)")) {
+      statement.setInt(1, LOCK_NAMESPACE);
+      statement.setInt(2, lockKey);
+      try (ResultSet rs = statement.executeQuery()) {
+        return rs.next() && rs.getBoolean(1);
+      }
+    }
+  }
+
+  /** The last run of a job. */
+  public static final class JobRun {
+    private final String jobName;
+    private final String node;
+    private final UTCInstant startedAt;
+    private final UTCInstant finishedAt;
+    private final boolean succeeded;
+
+    JobRun(
+        String jobName,
+        String node,
+        UTCInstant startedAt,
+        UTCInstant finishedAt,
+        boolean succeeded) {
+      this.jobName = jobName;
+      this.node = node;
+      this.startedAt = startedAt;
+      this.finishedAt = finishedAt;
+      this.succeeded = succeeded;
+    }
+
+    public String getJobName() {
+      return jobName;
+    }
+
+    /** @return the instance which ran the job */
+    public String getNode() {
+      return node;
+    }
+
+    public UTCInstant getStartedAt() {
+      return startedAt;
+    }
+
+    /** @return null if the job is still running, or the instance died while running it */
+    public UTCInstant getFinishedAt() {
+      return finishedAt;
+    }
+
+    public boolean isSucceeded() {
+      return succeeded;
+    }
+
+    /** @return how long the job took, or null if it hasn't finished */
+    public Duration getDuration() {
+      return finishedAt == null ? null : finishedAt.getDuration(startedAt);
+    }
+  }
+}
@@ -15,53 +15,64 @@ import javax.sql.DataSource;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
-import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
-import org.springframework.transaction.annotation.Transactional;
 
 public class JDBCRedeemDataServiceImpl implements RedeemDataService {
 
   private static final Logger logger = LoggerFactory.getLogger(JDBCRedeemDataServiceImpl.class);
 
+  private static final String PGSQL = "pgsql";
+  private final String dbType;
   private final NamedParameterJdbcTemplate jt;
-  private final SimpleJdbcInsert reedemUUIDInsert;
+  private final RetentionCleaner cleaner;
 
-  public JDBCRedeemDataServiceImpl(DataSource dataSource) {
+  public JDBCRedeemDataServiceImpl(String dbType, DataSource dataSource) {
+    this(dbType, dataSource, new RetentionCleaner(dataSource));
+  }
+
+  /** @param cleaner deletes the expired uuids */
+  public JDBCRedeemDataServiceImpl(String dbType, DataSource dataSource, RetentionCleaner cleaner) {
+    this.dbType = dbType;
     this.jt = new NamedParameterJdbcTemplate(dataSource);
-    this.reedemUUIDInsert =
-        new SimpleJdbcInsert(dataSource)
-            .withTableName("t_redeem_uuid")
-            .usingGeneratedKeyColumns("pk_redeem_uuid_id");
+    this.cleaner = cleaner;
   }
 
   @Override
-  @Transactional(readOnly = false)
   public boolean checkAndInsertPublishUUID(String uuid) {
-    String sql = "select count(1) from t_redeem_uuid where uuid = :uuid";
-    MapSqlParameterSource params = new MapSqlParameterSource("uuid", uuid);
-    Integer count = jt.queryForObject(sql, params, Integer.class);
-    if (count > 0) {
-      return false;
+    // the unique constraint decides which of concurrent requests with the same uuid wins, the
+    // update count tells whether it was this one
+    String sql;
+    if (dbType.equals(PGSQL)) {
+      sql =
+          "insert into t_redeem_uuid (uuid, received_at) values (:uuid, :received_at) on conflict"
+              + " on constraint uuid do nothing";
     } else {
-      // set the received_at to the next day, with no time information
-      // it will stay longer in the DB but we mitigate the risk that the JWT
-      // can be used twice (c.f. testTokensArentDeletedBeforeExpire).
-      var startOfTomorrow = UTCInstant.today().plusDays(1);
-      params.addValue("received_at", startOfTomorrow.getDate());
-      reedemUUIDInsert.execute(params);
-      return true;
+      sql =
+          "merge into t_redeem_uuid using (values(cast(:uuid as varchar(50)), cast(:received_at as"
+              + " timestamp with time zone))) as vals(uuid, received_at) on t_redeem_uuid.uuid ="
+              + " vals.uuid when not matched then insert (uuid, received_at) values (vals.uuid,"
+              + " vals.received_at)";
+    }
+    // set the received_at to the next day, with no time information
+    // it will stay longer in the DB but we mitigate the risk that the JWT
+    // can be used twice (c.f. testTokensArentDeletedBeforeExpire).
+    var startOfTomorrow = UTCInstant.today().plusDays(1);
+    MapSqlParameterSource params =
+        new MapSqlParameterSource("uuid", uuid).addValue("received_at", startOfTomorrow.getDate());
+    try {
+      return jt.update(sql, params) == 1;
+    } catch (DuplicateKeyException e) {
+      // a concurrent merge inserted the uuid first
+      return false;
     }
   }
 
   @Override
-  @Transactional(readOnly = false)
   public void cleanDB(Duration retentionPeriod) {
     var retentionTime = UTCInstant.now().minus(retentionPeriod);
     logger.info("Cleanup DB entries before: " + retentionTime);
-    MapSqlParameterSource params =
-        new MapSqlParameterSource("retention_time", retentionTime.getDate());
-    String sqlRedeem = "delete from t_redeem_uuid where received_at < :retention_time";
-    jt.update(sqlRedeem, params);
+    cleaner.clean("t_redeem_uuid", "pk_redeem_uuid_id", retentionTime);
   }
 }
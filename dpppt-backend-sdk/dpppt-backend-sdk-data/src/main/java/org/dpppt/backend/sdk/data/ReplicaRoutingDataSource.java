@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Sends the statements of read-only transactions to replicas of the primary database, and
+ * everything else to the primary. Statements outside of a transaction go to the primary as well.
+ *
+ * <p>The lag of every replica is checked every `checkInterval`. Replicas lagging more than
+ * `maxLag`, or whose lag can't be determined, aren't used until a later check succeeds. If no
+ * replica is available, or getting a connection from the chosen one fails, the primary is used.
+ *
+ * <p>Exports are cached for a whole release bucket, and are queried with the start of the current
+ * bucket as `publishedUntil`. A replica which hasn't replayed the last uploads of the previous
+ * bucket would return an export missing them, and clients would never fetch them later. So a
+ * replica is only used once a check has shown that it replayed everything committed before the
+ * current bucket started. Right after a bucket boundary, read-only transactions therefore go to the
+ * primary until the next check.
+ *
+ * <p>Connections are only taken from the pools once the first statement is executed, since whether
+ * a transaction is read-only is only known after it has been started.
+ */
+public class ReplicaRoutingDataSource extends LazyConnectionDataSourceProxy
+    implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+  // a replica which has replayed everything it received isn't lagging, even if the primary has
+  // been idle for a while
+  private static final String LAG_QUERY =
+      "select case when not pg_is_in_recovery() or pg_last_wal_receive_lsn() ="
+          + " pg_last_wal_replay_lsn() then 0 else extract(epoch from now() -"
+          + " pg_last_xact_replay_timestamp()) * 1000 end";
+
+  private final DataSource primary;
+  private final List<DataSource> replicas;
+  private final Duration maxLag;
+  private final Duration releaseBucketDuration;
+  // per replica the time until which it has replayed all transactions, or null if it isn't used
+  private final UTCInstant[] replayedUntil;
+  private final AtomicInteger next = new AtomicInteger();
+  private final LagCheck lagCheck;
+  private final ScheduledExecutorService lagChecker;
+
+  /**
+   * @param primary the primary database
+   * @param replicas replicas of the primary
+   * @param maxLag replicas lagging more are not used
+   * @param checkInterval how often the lag of the replicas is checked
+   * @param releaseBucketDuration replicas must have replayed the start of the current bucket
+   */
+  public ReplicaRoutingDataSource(
+      DataSource primary,
+      List<DataSource> replicas,
+      Duration maxLag,
+      Duration checkInterval,
+      Duration releaseBucketDuration) {
+    this(
+        primary,
+        replicas,
+        maxLag,
+        checkInterval,
+        releaseBucketDuration,
+        ReplicaRoutingDataSource::replicaLag);
+  }
+
+  ReplicaRoutingDataSource(
+      DataSource primary,
+      List<DataSource> replicas,
+      Duration maxLag,
+      Duration checkInterval,
+      Duration releaseBucketDuration,
+      LagCheck lagCheck) {
+    this.primary = primary;
+    this.replicas = List.copyOf(replicas);
+    this.maxLag = maxLag;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.lagCheck = lagCheck;
+    this.replayedUntil = new UTCInstant[replicas.size()];
+    setTargetDataSource(new Router());
+    // the defaults of the pools, so that no connection is needed to find them out
+    setDefaultAutoCommit(true);
+    setDefaultTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    afterPropertiesSet();
+
+    checkReplicas();
+    this.lagChecker =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              var thread = new Thread(r, "replica-lag-check");
+              thread.setDaemon(true);
+              return thread;
+            });
+    lagChecker.scheduleWithFixedDelay(
+        this::checkReplicas,
+        checkInterval.toMillis(),
+        checkInterval.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Checks the lag of all replicas, and updates which of them are used. */
+  void checkReplicas() {
+    for (int i = 0; i < replicas.size(); i++) {
+      // taken before the check, so the replica has replayed at least everything committed before
+      var checkStart = UTCInstant.now();
+      UTCInstant replicaReplayedUntil = null;
+      try {
+        var lag = lagCheck.lag(replicas.get(i));
+        if (lag.compareTo(maxLag) <= 0) {
+          replicaReplayedUntil = checkStart.minus(lag);
+        } else {
+          logger.warn("Replica " + i + " is lagging " + lag + ", using the primary instead");
+        }
+      } catch (SQLException | RuntimeException e) {
+        logger.warn("Could not check the lag of replica " + i + ", using the primary instead", e);
+      }
+      setReplayedUntil(i, replicaReplayedUntil);
+    }
+  }
+
+  private static Duration replicaLag(DataSource replica) throws SQLException {
+    try (Connection con = replica.getConnection();
+        Statement statement = con.createStatement();
+        ResultSet rs = statement.executeQuery(LAG_QUERY)) {
+      rs.next();
+      double lagMillis = rs.getDouble(1);
+      if (rs.wasNull()) {
+        throw new SQLException("The replica hasn't replayed any transaction yet");
+      }
+      return Duration.ofMillis((long) lagMillis);
+    }
+  }
+
+  private synchronized void setReplayedUntil(int replica, UTCInstant until) {
+    replayedUntil[replica] = until;
+  }
+
+  /**
+   * @return the replicas which replayed everything before the start of the current release bucket,
+   *     in round-robin order starting with the next one
+   */
+  private synchronized List<Integer> availableReplicas() {
+    var bucketStart = UTCInstant.now().roundToBucketStart(releaseBucketDuration);
+    var result = new ArrayList<Integer>(replicas.size());
+    int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+    for (int i = 0; i < replicas.size(); i++) {
+      int replica = (start + i) % replicas.size();
+      var until = replayedUntil[replica];
+      if (until != null && !until.isBeforeEpochMillisOf(bucketStart)) {
+        result.add(replica);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void close() throws Exception {
+    lagChecker.shutdownNow();
+    for (var replica : replicas) {
+      if (replica instanceof AutoCloseable) {
+        ((AutoCloseable) replica).close();
+      }
+    }
+    if (primary instanceof AutoCloseable) {
+      ((AutoCloseable) primary).close();
+    }
+  }
+
+  /** Determines how far a replica is behind the primary. */
+  @FunctionalInterface
+  interface LagCheck {
+    Duration lag(DataSource replica) throws SQLException;
+  }
+
+  private class Router extends AbstractDataSource {
+
+    @Override
+    public Connection getConnection() throws SQLException {
+      if (TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+        for (int replica : availableReplicas()) {
+          try {
+            return replicas.get(replica).getConnection();
+          } catch (SQLException e) {
+            logger.warn("Could not connect to replica " + replica + ", trying the next", e);
+            setReplayedUntil(replica, null);
+          }
+        }
+      }
+      return primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+      return primary.getConnection(username, password);
+    }
+  }
+}
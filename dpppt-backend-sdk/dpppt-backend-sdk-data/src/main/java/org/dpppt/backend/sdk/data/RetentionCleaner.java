@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+/**
+ * Deletes the rows of a table which were received before the retention time, in chunks of at most
+ * `chunkSize` rows in primary key order. Every chunk is committed on its own, so that locks are
+ * only held for a short time. After every chunk the cleaner pauses for `pauseRatio` times the
+ * latency of the chunk, but at most `maxPause`, so that a slow database gets more time to serve
+ * uploads and exports.
+ *
+ * <p>The table must have a numeric primary key and a `received_at` column.
+ */
+public class RetentionCleaner {
+
+  private static final Logger logger = LoggerFactory.getLogger(RetentionCleaner.class);
+
+  public static final int DEFAULT_CHUNK_SIZE = 10_000;
+  public static final double DEFAULT_PAUSE_RATIO = 1.0;
+  public static final Duration DEFAULT_MAX_PAUSE = Duration.ofSeconds(5);
+
+  private final NamedParameterJdbcTemplate jt;
+  private final int chunkSize;
+  private final double pauseRatio;
+  private final Duration maxPause;
+
+  public RetentionCleaner(DataSource dataSource) {
+    this(dataSource, DEFAULT_CHUNK_SIZE, DEFAULT_PAUSE_RATIO, DEFAULT_MAX_PAUSE);
+  }
+
+  /**
+   * @param dataSource the database to clean, used without a surrounding transaction
+   * @param chunkSize maximum number of rows deleted by a single statement
+   * @param pauseRatio pause after a chunk, relative to the time it took to delete it
+   * @param maxPause upper limit of the pause after a chunk
+   */
+  public RetentionCleaner(
+      DataSource dataSource, int chunkSize, double pauseRatio, Duration maxPause) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    this.jt = new NamedParameterJdbcTemplate(dataSource);
+    this.chunkSize = chunkSize;
+    this.pauseRatio = pauseRatio;
+    this.maxPause = maxPause;
+  }
+
+  /**
+   * Deletes all rows of `table` received before `retentionTime`.
+   *
+   * @param table the table to clean
+   * @param pkColumn the primary key of the table
+   * @param retentionTime rows received before are deleted
+   * @return what has been deleted
+   */
+  public Result clean(String table, String pkColumn, UTCInstant retentionTime) {
+    MapSqlParameterSource params =
+        new MapSqlParameterSource("retention_time", retentionTime.getDate())
+            .addValue("chunk_size", chunkSize);
+    // the first expired rows in primary key order, which is roughly the order of received_at
+    String nextChunk =
+        "select max("
+            + pkColumn
+            + ") as upper_pk, min(received_at) as oldest from (select "
+            + pkColumn
+            + ", received_at from "
+            + table
+            + " where received_at < :retention_time order by "
+            + pkColumn
+            + " limit :chunk_size) c";
+    String deleteChunk =
+        "delete from "
+            + table
+            + " where "
+            + pkColumn
+            + " <= :upper_pk and received_at < :retention_time";
+
+    var start = System.nanoTime();
+    Duration lag = Duration.ZERO;
+    long deleted = 0;
+    int chunks = 0;
+    while (true) {
+      var chunk =
+          jt.queryForObject(
+              nextChunk,
+              params,
+              (rs, rowNum) -> {
+                long upper = rs.getLong("upper_pk");
+                return rs.wasNull() ? null : new Chunk(upper, rs.getTimestamp("oldest"));
+              });
+      if (chunk == null) {
+        break;
+      }
+      var chunkLag = Duration.ofMillis(retentionTime.getTimestamp() - chunk.oldest.getTime());
+      if (chunkLag.compareTo(lag) > 0) {
+        lag = chunkLag;
+      }
+      params.addValue("upper_pk", chunk.upperPk);
+      var chunkStart = System.nanoTime();
+      int rows = jt.update(deleteChunk, params);
+      deleted += rows;
+      chunks++;
+      if (rows < chunkSize) {
+        // the table has caught up with the retention time
+        break;
+      }
+      if (!pause(Duration.ofNanos(System.nanoTime() - chunkStart))) {
+        logger.warn("Cleanup of " + table + " interrupted");
+        break;
+      }
+    }
+    var result = new Result(deleted, chunks, Duration.ofNanos(System.nanoTime() - start), lag);
+    logger.info(
+        "Cleaned up "
+            + table
+            + ": "
+            + result.getDeletedRows()
+            + " rows in "
+            + result.getChunks()
+            + " chunks, "
+            + result.getDuration().toMillis()
+            + "ms, "
+            + Math.round(result.getRowsPerSecond())
+            + " rows/s, lag "
+            + result.getLag());
+    return result;
+  }
+
+  /** @return false if the thread was interrupted */
+  private boolean pause(Duration latency) {
+    long pauseMillis = Math.min(maxPause.toMillis(), (long) (latency.toMillis() * pauseRatio));
+    if (pauseMillis <= 0) {
+      return true;
+    }
+    try {
+      Thread.sleep(pauseMillis);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private static final class Chunk {
+    private final long upperPk;
+    private final Timestamp oldest;
+
+    private Chunk(long upperPk, Timestamp oldest) {
+      this.upperPk = upperPk;
+      this.oldest = oldest;
+    }
+  }
+
+  /** Statistics of one cleanup of a table. */
+  public static final class Result {
+    private final long deletedRows;
+    private final int chunks;
+    private final Duration duration;
+    private final Duration lag;
+
+    Result(long deletedRows, int chunks, Duration duration, Duration lag) {
+      this.deletedRows = deletedRows;
+      this.chunks = chunks;
+      this.duration = duration;
+      this.lag = lag;
+    }
+
+    public long getDeletedRows() {
+      return deletedRows;
+    }
+
+    public int getChunks() {
+      return chunks;
+    }
+
+    public Duration getDuration() {
+      return duration;
+    }
+
+    public double getRowsPerSecond() {
+      return duration.isZero() ? 0 : deletedRows * 1_000_000_000.0 / duration.toNanos();
+    }
+
+    /** @return how long the oldest deleted row had been kept beyond the retention time */
+    public Duration getLag() {
+      return lag;
+    }
+  }
+}
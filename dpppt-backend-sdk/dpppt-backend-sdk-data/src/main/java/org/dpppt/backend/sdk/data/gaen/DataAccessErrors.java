@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data.gaen;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.transaction.TransactionException;
+
+/** Decides whether a failed write of uploaded keys is worth retrying. */
+final class DataAccessErrors {
+
+  private DataAccessErrors() {}
+
+  /** @return true if the database couldn't be reached, independent of the written keys */
+  static boolean isConnectionFailure(RuntimeException e) {
+    return e instanceof DataAccessResourceFailureException || e instanceof TransactionException;
+  }
+
+  /** @return true if the same write may succeed later */
+  static boolean isDatabaseUnavailable(RuntimeException e) {
+    return isConnectionFailure(e) || e instanceof TransientDataAccessException;
+  }
+}
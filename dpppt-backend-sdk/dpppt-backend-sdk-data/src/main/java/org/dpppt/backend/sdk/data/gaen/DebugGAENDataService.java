@@ -10,6 +10,7 @@
 
 package org.dpppt.backend.sdk.data.gaen;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
@@ -33,4 +34,11 @@ public interface DebugGAENDataService {
    */
   Map<String, List<GaenKey>> getSortedExposedForBatchReleaseTime(
       Long batchReleaseTime, long releaseBucketDuration);
+
+  /**
+   * deletes debug keys older than retentionperiod
+   *
+   * @param retentionPeriod how long debug keys are kept
+   */
+  void cleanDB(Duration retentionPeriod);
 }
@@ -10,10 +10,12 @@
 
 package org.dpppt.backend.sdk.data.gaen;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.RetentionCleaner;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.slf4j.Logger;
@@ -29,10 +31,18 @@ public class DebugJDBCGAENDataServiceImpl implements DebugGAENDataService {
   private static final String PGSQL = "pgsql";
   private final String dbType;
   private final NamedParameterJdbcTemplate jt;
+  private final RetentionCleaner cleaner;
 
   public DebugJDBCGAENDataServiceImpl(String dbType, DataSource dataSource) {
+    this(dbType, dataSource, new RetentionCleaner(dataSource));
+  }
+
+  /** @param cleaner deletes the expired debug keys */
+  public DebugJDBCGAENDataServiceImpl(
+      String dbType, DataSource dataSource, RetentionCleaner cleaner) {
     this.dbType = dbType;
     this.jt = new NamedParameterJdbcTemplate(dataSource);
+    this.cleaner = cleaner;
   }
 
   @Override
@@ -48,9 +58,9 @@ public class DebugJDBCGAENDataServiceImpl implements DebugGAENDataService {
     } else {
       sql =
           "merge into t_debug_gaen_exposed using (values(cast(:device_name as varchar(200)),"
-              + " cast(:key as varchar(24)), :rolling_start_number, :rolling_period,"
+              + " cast(:key as varbinary(16)), :rolling_start_number, :rolling_period,"
               + " :transmission_risk_level)) as vals(device_name, key, rolling_start_number,"
-              + " rolling_period, transmission_risk_level) on t_gaen_exposed.key = vals.key when"
+              + " rolling_period, transmission_risk_level) on t_debug_gaen_exposed.key = vals.key when"
               + " not matched then insert (device_name, key, rolling_start_number, rolling_period,"
               + " transmission_risk_level) values (vals.device_name, vals.key,"
               + " vals.rolling_start_number, vals.rolling_period, transmission_risk_level)";
@@ -59,7 +69,7 @@ public class DebugJDBCGAENDataServiceImpl implements DebugGAENDataService {
     for (var gaenKey : gaenKeys) {
       MapSqlParameterSource params = new MapSqlParameterSource();
       params.addValue("device_name", deviceName);
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());
@@ -82,4 +92,11 @@ public class DebugJDBCGAENDataServiceImpl implements DebugGAENDataService {
         "startBatch", UTCInstant.ofEpochMillis(batchReleaseTime - releaseBucketDuration).getDate());
     return jt.query(sql, params, new DebugGaenKeyResultSetExtractor());
   }
+
+  @Override
+  public void cleanDB(Duration retentionPeriod) {
+    var retentionTime = UTCInstant.now().minus(retentionPeriod);
+    logger.info("Cleanup debug DB entries before: " + retentionTime);
+    cleaner.clean("t_debug_gaen_exposed", "pk_exposed_id", retentionTime);
+  }
 }
@@ -1,66 +1,97 @@
 package org.dpppt.backend.sdk.data.gaen;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Pads the exports of the past days with fake keys. The fake keys are derived from a secret with
+ * HMAC-SHA256 over the key date and the index of the key, so all instances sharing the secret serve
+ * the same padding without any coordination. The keys of a key date are computed when they are
+ * first requested, and kept in memory until the key date leaves the retention period.
+ *
+ * <p>Fake keys are served for the key dates before the day of the last {@link #updateFakeKeys()},
+ * which runs at startup and by the daily cron. They are released under the same conditions as keys
+ * stored in the database which were received in the first release bucket of that day.
+ */
 public class FakeKeyService {
 
-  private final GAENDataService dataService;
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  private final SecretKeySpec secret;
   private final Integer minNumOfKeys;
-  private final SecureRandom random;
   private final Integer keySize;
   private final Duration retentionPeriod;
+  private final Duration releaseBucketDuration;
+  private final Duration timeSkew;
   private final boolean isEnabled;
 
+  // fake keys by the timestamp of their key date
+  private final ConcurrentHashMap<Long, List<GaenKey>> fakeKeys = new ConcurrentHashMap<>();
+  private volatile UTCInstant updateDate;
+
   private static final Logger logger = LoggerFactory.getLogger(FakeKeyService.class);
 
+  /**
+   * @param secret the secret the fake keys are derived from. If it is empty, a random secret is
+   *     used, and the fake keys differ between instances.
+   * @param minNumOfKeys number of fake keys per key date
+   * @param keySize size of the fake keys in bytes
+   * @param retentionPeriod fake keys are served for the key dates of the retention period
+   * @param releaseBucketDuration the duration of a release bucket
+   * @param timeSkew the time skew accepted by clients
+   * @param isEnabled if false, no fake keys are served
+   */
   public FakeKeyService(
-      GAENDataService dataService,
+      byte[] secret,
       Integer minNumOfKeys,
       Integer keySize,
       Duration retentionPeriod,
+      Duration releaseBucketDuration,
+      Duration timeSkew,
       boolean isEnabled)
       throws NoSuchAlgorithmException {
-    this.dataService = dataService;
+    if (secret == null || secret.length == 0) {
+      if (isEnabled) {
+        logger.warn("No fake key secret configured, fake keys will differ between instances");
+      }
+      secret = new byte[32];
+      new SecureRandom().nextBytes(secret);
+    }
+    this.secret = new SecretKeySpec(secret, HMAC_ALGORITHM);
+    // fail early if the algorithm isn't available
+    Mac.getInstance(HMAC_ALGORITHM);
     this.minNumOfKeys = minNumOfKeys;
-    this.random = new SecureRandom();
     this.keySize = keySize;
     this.retentionPeriod = retentionPeriod;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.timeSkew = timeSkew;
     this.isEnabled = isEnabled;
     this.updateFakeKeys();
   }
 
+  /**
+   * Serves fake keys up to yesterday, and drops the fake keys of the key dates which have left the
+   * retention period.
+   */
   public void updateFakeKeys() {
-    deleteAllKeys();
-    var currentKeyDate = UTCInstant.today();
-    var tmpDate = currentKeyDate.minusDays(retentionPeriod.toDays()).atStartOfDay();
-    logger.debug("Fill Fake keys. Start: " + currentKeyDate + " End: " + tmpDate);
-    do {
-      var keys = new ArrayList<GaenKey>();
-      for (int i = 0; i < minNumOfKeys; i++) {
-        byte[] keyData = new byte[keySize];
-        random.nextBytes(keyData);
-        var keyGAENTime = (int) tmpDate.get10MinutesSince1970();
-        var key = new GaenKey(Base64.getEncoder().encodeToString(keyData), keyGAENTime, 144, 0);
-        keys.add(key);
-      }
-      // TODO: Check if currentKeyDate is indeed intended here
-      this.dataService.upsertExposees(keys, currentKeyDate);
-      tmpDate = tmpDate.plusDays(1);
-    } while (tmpDate.isBeforeDateOf(currentKeyDate));
-  }
-
-  private void deleteAllKeys() {
-    logger.debug("Delete all fake keys");
-    this.dataService.cleanDB(Duration.ofDays(0));
+    var today = UTCInstant.today();
+    var retentionStart = today.minusDays(retentionPeriod.toDays());
+    logger.debug("Fake keys from " + retentionStart + " until " + today);
+    fakeKeys.keySet().removeIf(keyDate -> keyDate < retentionStart.getTimestamp());
+    this.updateDate = today;
   }
 
   public List<GaenKey> fillUpKeys(
@@ -70,14 +101,62 @@ public class FakeKeyService {
     }
     var today = now.atStartOfDay();
     var keyLocalDate = keyDate.atStartOfDay();
-    if (today.hasSameDateAs(keyLocalDate)) {
+    var currentUpdateDate = this.updateDate;
+    if (today.hasSameDateAs(keyLocalDate)
+        || keyDate.getTimestamp() != keyLocalDate.getTimestamp()
+        || keyDate.isBeforeDateOf(currentUpdateDate.minusDays(retentionPeriod.toDays()))
+        || !keyDate.isBeforeDateOf(currentUpdateDate)) {
       return keys;
     }
-    var fakeKeys =
-        this.dataService.getSortedExposedForKeyDate(
-            keyDate, publishedafter, UTCInstant.today().plusDays(1), now);
-
-    keys.addAll(fakeKeys);
+    var receivedAt =
+        currentUpdateDate.roundToNextBucket(releaseBucketDuration).minus(Duration.ofMillis(1));
+    if (publishedafter != null && receivedAt.isBeforeEpochMillisOf(publishedafter)) {
+      return keys;
+    }
+    // same as for real keys: only release them once they are expired on all clients
+    var maxAllowedStartNumber =
+        now.roundToBucketStart(releaseBucketDuration).minus(timeSkew).get10MinutesSince1970();
+    if (keyDate.get10MinutesSince1970() + GaenKey.GaenKeyDefaultRollingPeriod
+        >= maxAllowedStartNumber) {
+      return keys;
+    }
+    keys.addAll(fakeKeys.computeIfAbsent(keyDate.getTimestamp(), k -> deriveFakeKeys(keyDate)));
     return keys;
   }
+
+  /**
+   * Computes the fake keys of a key date. The result only depends on the secret and the key date.
+   *
+   * @param keyDate the key date, at the start of the day
+   * @return the fake keys of the key date
+   */
+  public List<GaenKey> deriveFakeKeys(UTCInstant keyDate) {
+    Mac mac;
+    try {
+      mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(secret);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not initialize " + HMAC_ALGORITHM, e);
+    }
+    var keyGAENTime = (int) keyDate.get10MinutesSince1970();
+    var keys = new ArrayList<GaenKey>(minNumOfKeys);
+    for (int i = 0; i < minNumOfKeys; i++) {
+      byte[] keyData = new byte[keySize];
+      // every block of the HMAC output fills up to 32 bytes of the key
+      for (int block = 0, offset = 0; offset < keySize; block++) {
+        mac.update(ByteBuffer.allocate(12).putInt(keyGAENTime).putInt(i).putInt(block).array());
+        byte[] output = mac.doFinal();
+        int length = Math.min(output.length, keySize - offset);
+        System.arraycopy(output, 0, keyData, offset, length);
+        offset += length;
+      }
+      var key = new GaenKey();
+      key.setKeyBytes(keyData);
+      key.setRollingStartNumber(keyGAENTime);
+      key.setRollingPeriod(GaenKey.GaenKeyDefaultRollingPeriod);
+      key.setTransmissionRiskLevel(0);
+      keys.add(key);
+    }
+    return Collections.unmodifiableList(keys);
+  }
 }
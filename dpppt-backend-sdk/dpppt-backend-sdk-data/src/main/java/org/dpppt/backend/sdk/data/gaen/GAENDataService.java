@@ -56,4 +56,7 @@ public interface GAENDataService {
    * @param retentionPeriod in milliseconds
    */
   void cleanDB(Duration retentionPeriod);
+
+  /** Stops background work. Implementations wrapping another data service must shut it down too. */
+  default void shutdown() throws InterruptedException {}
 }
@@ -10,23 +10,34 @@
 
 package org.dpppt.backend.sdk.data.gaen;
 
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.RetentionCleaner;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionOperations;
+import org.springframework.transaction.support.TransactionTemplate;
 
 public class JDBCGAENDataServiceImpl implements GAENDataService {
 
   private static final Logger logger = LoggerFactory.getLogger(JDBCGAENDataServiceImpl.class);
 
   private static final String PGSQL = "pgsql";
+  // number of days for which the partitions are created in advance
+  private static final int PARTITIONS_AHEAD = 7;
   private final String dbType;
   private final NamedParameterJdbcTemplate jt;
   private final Duration releaseBucketDuration;
@@ -34,13 +45,53 @@ public class JDBCGAENDataServiceImpl implements GAENDataService {
   // for now
   // https://developer.apple.com/documentation/exposurenotification/setting_up_a_key_server?language=objc)
   private final Duration timeSkew;
+  private final boolean partitioned;
+  private final RetentionCleaner cleaner;
+  private final TransactionOperations transactions;
 
   public JDBCGAENDataServiceImpl(
       String dbType, DataSource dataSource, Duration releaseBucketDuration, Duration timeSkew) {
+    this(dbType, dataSource, releaseBucketDuration, timeSkew, false);
+  }
+
+  /**
+   * @param partitioned if t_gaen_exposed is partitioned by received_at, as created by the
+   *     migrations in `db/migration/pgsql_partitioned`. Only supported for pgsql.
+   */
+  public JDBCGAENDataServiceImpl(
+      String dbType,
+      DataSource dataSource,
+      Duration releaseBucketDuration,
+      Duration timeSkew,
+      boolean partitioned) {
+    this(
+        dbType,
+        dataSource,
+        releaseBucketDuration,
+        timeSkew,
+        partitioned,
+        new RetentionCleaner(dataSource));
+  }
+
+  /** @param cleaner deletes the expired keys, if t_gaen_exposed isn't partitioned */
+  public JDBCGAENDataServiceImpl(
+      String dbType,
+      DataSource dataSource,
+      Duration releaseBucketDuration,
+      Duration timeSkew,
+      boolean partitioned,
+      RetentionCleaner cleaner) {
+    if (partitioned && !dbType.equals(PGSQL)) {
+      throw new IllegalArgumentException("Partitioned t_gaen_exposed requires " + PGSQL);
+    }
     this.dbType = dbType;
     this.jt = new NamedParameterJdbcTemplate(dataSource);
     this.releaseBucketDuration = releaseBucketDuration;
     this.timeSkew = timeSkew;
+    this.partitioned = partitioned;
+    this.cleaner = cleaner;
+    // joins the transaction of the caller, if there is one
+    this.transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
   }
 
   @Override
@@ -54,7 +105,16 @@ public class JDBCGAENDataServiceImpl implements GAENDataService {
       List<GaenKey> gaenKeys, UTCInstant delayedReceivedAt, UTCInstant now) {
 
     String sql = null;
-    if (dbType.equals(PGSQL)) {
+    if (partitioned) {
+      // the unique constraint only covers keys with the same received_at, see lockKeys
+      sql =
+          "insert into t_gaen_exposed (key, rolling_start_number, rolling_period,"
+              + " transmission_risk_level, received_at) select cast(:key as bytea),"
+              + " cast(:rolling_start_number as int), cast(:rolling_period as smallint),"
+              + " cast(:transmission_risk_level as smallint), cast(:received_at as timestamp with"
+              + " time zone) where not exists (select 1 from t_gaen_exposed where key ="
+              + " cast(:key as bytea)) on conflict on constraint gaen_exposed_key do nothing";
+    } else if (dbType.equals(PGSQL)) {
       sql =
           "insert into t_gaen_exposed (key, rolling_start_number, rolling_period,"
               + " transmission_risk_level, received_at) values (:key, :rolling_start_number,"
@@ -62,7 +122,7 @@ public class JDBCGAENDataServiceImpl implements GAENDataService {
               + " constraint gaen_exposed_key do nothing";
     } else {
       sql =
-          "merge into t_gaen_exposed using (values(cast(:key as varchar(24)),"
+          "merge into t_gaen_exposed using (values(cast(:key as varbinary(16)),"
               + " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at))"
               + " as vals(key, rolling_start_number, rolling_period, transmission_risk_level,"
               + " received_at) on t_gaen_exposed.key = vals.key when not matched then insert (key,"
@@ -78,7 +138,7 @@ public class JDBCGAENDataServiceImpl implements GAENDataService {
             : delayedReceivedAt;
     for (var gaenKey : gaenKeys) {
       MapSqlParameterSource params = new MapSqlParameterSource();
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());
@@ -86,7 +146,47 @@ public class JDBCGAENDataServiceImpl implements GAENDataService {
 
       parameterList.add(params);
     }
-    jt.batchUpdate(sql, parameterList.toArray(new MapSqlParameterSource[0]));
+    var batch = parameterList.toArray(new MapSqlParameterSource[0]);
+    if (partitioned) {
+      var insert = sql;
+      transactions.executeWithoutResult(
+          status -> {
+            lockKeys(gaenKeys);
+            jt.batchUpdate(insert, batch);
+          });
+      return;
+    }
+    jt.batchUpdate(sql, batch);
+  }
+
+  /**
+   * Takes a transaction-level advisory lock for every key. Under READ COMMITTED, the check for the
+   * key in the other partitions only sees keys committed before the insert started, so two
+   * transactions inserting the same key with a different received_at would both succeed. With the
+   * lock, the second one waits until the first one has committed, and its insert then sees the key.
+   * The locks are taken in ascending order, so concurrent uploads can't deadlock.
+   */
+  private void lockKeys(List<GaenKey> gaenKeys) {
+    Long[] locks =
+        gaenKeys.stream()
+            .map(key -> ByteBuffer.wrap(Arrays.copyOf(key.getKeyBytes(), Long.BYTES)).getLong())
+            .distinct()
+            .sorted()
+            .toArray(Long[]::new);
+    jt.getJdbcOperations()
+        .execute(
+            (ConnectionCallback<Void>)
+                con -> {
+                  try (PreparedStatement statement =
+                      con.prepareStatement(
+                          "select count(pg_advisory_xact_lock(l)) from unnest(?) as l")) {
+                    statement.setArray(1, con.createArrayOf("bigint", locks));
+                    try (ResultSet rs = statement.executeQuery()) {
+                      rs.next();
+                    }
+                  }
+                  return null;
+                });
   }
 
   @Override
@@ -94,45 +194,77 @@ public class JDBCGAENDataServiceImpl implements GAENDataService {
   public List<GaenKey> getSortedExposedForKeyDate(
       UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now) {
     MapSqlParameterSource params = new MapSqlParameterSource();
-    params.addValue("rollingPeriodStartNumberStart", keyDate.get10MinutesSince1970());
-    params.addValue("rollingPeriodStartNumberEnd", keyDate.plusDays(1).get10MinutesSince1970());
-    params.addValue("publishedUntil", publishedUntil.getDate());
+    String sql = exposedForKeyDateQuery(keyDate, publishedAfter, publishedUntil, now, params);
+    return jt.query(sql, params, new GaenKeyRowMapper());
+  }
 
-    String sql =
-        "select pk_exposed_id, key, rolling_start_number, rolling_period, transmission_risk_level"
-            + " from t_gaen_exposed where rolling_start_number >= :rollingPeriodStartNumberStart"
-            + " and rolling_start_number < :rollingPeriodStartNumberEnd and received_at <"
-            + " :publishedUntil";
+  /**
+   * Builds the query of {@link #getSortedExposedForKeyDate}. Every predicate on
+   * rolling_start_number is a plain range, so that it can be answered by the index
+   * `gaen_exposed_export`.
+   *
+   * @param params filled with the parameters of the query
+   * @return the sql of the query
+   */
+  String exposedForKeyDateQuery(
+      UTCInstant keyDate,
+      UTCInstant publishedAfter,
+      UTCInstant publishedUntil,
+      UTCInstant now,
+      MapSqlParameterSource params) {
     // we need to subtract the time skew since we want to release it iff rolling_start_number +
     // rolling_period + timeSkew < NOW
     // note though that since we use `<` instead of `<=` a key which is valid until 24:00 will be
     // accepted until 02:00 (by the clients, so we MUST NOT release it before 02:00), but 02:00 lies
     // in the bucket of 04:00. So the key will be released
     // earliest 04:00.
+    long maxAllowedStartNumber =
+        now.roundToBucketStart(releaseBucketDuration).minus(timeSkew).get10MinutesSince1970();
+    // rolling_period is never negative, so rolling_start_number + rolling_period <
+    // maxAllowedStartNumber implies rolling_start_number < maxAllowedStartNumber. Adding the
+    // implied bound to the range narrows the index scan to the keys which can be released.
+    params.addValue("rollingPeriodStartNumberStart", keyDate.get10MinutesSince1970());
     params.addValue(
-        "maxAllowedStartNumber",
-        now.roundToBucketStart(releaseBucketDuration).minus(timeSkew).get10MinutesSince1970());
-    sql += " and rolling_start_number + rolling_period < :maxAllowedStartNumber";
+        "rollingPeriodStartNumberEnd",
+        Math.min(keyDate.plusDays(1).get10MinutesSince1970(), maxAllowedStartNumber));
+    params.addValue("publishedUntil", publishedUntil.getDate());
+    params.addValue("maxAllowedStartNumber", maxAllowedStartNumber);
+
+    String sql =
+        "select pk_exposed_id, key, rolling_start_number, rolling_period, transmission_risk_level"
+            + " from t_gaen_exposed where rolling_start_number >= :rollingPeriodStartNumberStart"
+            + " and rolling_start_number < :rollingPeriodStartNumberEnd and received_at <"
+            + " :publishedUntil and rolling_start_number + rolling_period < :maxAllowedStartNumber";
 
     // note that received_at is always rounded to `next_bucket` - 1ms to difuse actual upload time
     if (publishedAfter != null) {
       params.addValue("publishedAfter", publishedAfter.getDate());
       sql += " and received_at >= :publishedAfter";
     }
-
-    sql += " order by pk_exposed_id desc";
-
-    return jt.query(sql, params, new GaenKeyRowMapper());
+    return sql + " order by pk_exposed_id desc";
   }
 
   @Override
-  @Transactional(readOnly = false)
   public void cleanDB(Duration retentionPeriod) {
     var retentionTime = UTCInstant.now().minus(retentionPeriod);
     logger.info("Cleanup DB entries before: " + retentionTime);
     MapSqlParameterSource params =
         new MapSqlParameterSource("retention_time", retentionTime.getDate());
-    String sqlExposed = "delete from t_gaen_exposed where received_at < :retention_time";
-    jt.update(sqlExposed, params);
+    if (partitioned) {
+      // drop the days which have expired completely, a few more hours of keys don't hurt since
+      // exports only contain key dates within the retention period
+      jt.execute(
+          "select gaen_exposed_drop_partitions(cast(:retention_time as timestamp with time zone))",
+          params,
+          PreparedStatement::execute);
+      params.addValue("partitions_until", UTCInstant.now().plusDays(PARTITIONS_AHEAD).getDate());
+      jt.execute(
+          "select gaen_exposed_create_partitions(now(), cast(:partitions_until as timestamp with"
+              + " time zone))",
+          params,
+          PreparedStatement::execute);
+      return;
+    }
+    cleaner.clean("t_gaen_exposed", "pk_exposed_id", retentionTime);
   }
 }
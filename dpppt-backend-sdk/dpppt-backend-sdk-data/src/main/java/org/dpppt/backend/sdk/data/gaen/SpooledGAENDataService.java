@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.dpppt.backend.sdk.data.gaen.UploadSpool.SpooledUpload;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionOperations;
+
+/**
+ * Accepts uploads as soon as they are written to an {@link UploadSpool} on local disk, so that a
+ * slow or unavailable database doesn't make clients retry. A background thread replays the spool
+ * into the delegate in order. If the database is unavailable, the replay is retried after
+ * `retryInterval`. If the database rejects an upload, or it failed `MAX_ATTEMPTS` times with a
+ * transient error, its keys are written one by one. Keys which still fail are logged, counted and
+ * dropped, so that a single bad upload doesn't hold back all uploads spooled after it.
+ *
+ * <p>If an upload is replayed after its release bucket has ended, it is inserted as if it was
+ * uploaded now. Otherwise its keys would be added to a bucket clients may already have downloaded.
+ *
+ * <p>All other methods are passed to the delegate.
+ */
+public class SpooledGAENDataService implements GAENDataService {
+
+  private static final Logger logger = LoggerFactory.getLogger(SpooledGAENDataService.class);
+
+  private static final int MAX_ATTEMPTS = 5;
+
+  private final GAENDataService delegate;
+  private final UploadSpool spool;
+  private final TransactionOperations transactions;
+  private final Duration releaseBucketDuration;
+  private final long retryIntervalNanos;
+  private final Thread replayer;
+  private final AtomicInteger droppedKeys = new AtomicInteger();
+  private volatile boolean running = true;
+  // transient failures of the oldest upload in the spool
+  private int attempts;
+
+  /**
+   * @param delegate the data service writing to the database
+   * @param spool where accepted uploads are stored until they are in the database
+   * @param transactions runs every replayed upload in its own transaction
+   * @param releaseBucketDuration used to detect uploads of a bucket which has already ended
+   * @param retryInterval how long to wait after the database failed
+   */
+  public SpooledGAENDataService(
+      GAENDataService delegate,
+      UploadSpool spool,
+      TransactionOperations transactions,
+      Duration releaseBucketDuration,
+      Duration retryInterval) {
+    this.delegate = delegate;
+    this.spool = spool;
+    this.transactions = transactions;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.retryIntervalNanos = retryInterval.toNanos();
+    this.replayer = new Thread(this::run, "gaen-spool-replay");
+    this.replayer.setDaemon(true);
+    this.replayer.start();
+  }
+
+  @Override
+  public void upsertExposees(List<GaenKey> keys, UTCInstant now) {
+    if (keys.isEmpty()) {
+      return;
+    }
+    try {
+      spool.append(keys, now);
+    } catch (IOException e) {
+      logger.error("Could not spool upload, writing it to the database directly", e);
+      delegate.upsertExposees(keys, now);
+      return;
+    }
+    LockSupport.unpark(replayer);
+  }
+
+  @Override
+  public void upsertExposeesDelayed(
+      List<GaenKey> keys, UTCInstant delayedReceivedAt, UTCInstant now) {
+    delegate.upsertExposeesDelayed(keys, delayedReceivedAt, now);
+  }
+
+  @Override
+  @Transactional(readOnly = true)
+  public List<GaenKey> getSortedExposedForKeyDate(
+      UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now) {
+    return delegate.getSortedExposedForKeyDate(keyDate, publishedAfter, publishedUntil, now);
+  }
+
+  @Override
+  public void cleanDB(Duration retentionPeriod) {
+    delegate.cleanDB(retentionPeriod);
+  }
+
+  /** @return the number of spooled keys which were dropped because they could not be written */
+  public int getDroppedKeys() {
+    return droppedKeys.get();
+  }
+
+  /** Stops the replay. Uploads which are still in the spool are replayed after the next start. */
+  @Override
+  public void shutdown() throws InterruptedException {
+    running = false;
+    LockSupport.unpark(replayer);
+    replayer.join(TimeUnit.SECONDS.toMillis(30));
+    spool.close();
+    delegate.shutdown();
+  }
+
+  private void run() {
+    while (running) {
+      switch (replayNext()) {
+        case REPLAYED:
+          break;
+        case EMPTY:
+          // woken up by the next upload
+          LockSupport.parkNanos(this, retryIntervalNanos);
+          break;
+        case FAILED:
+          // don't let new uploads wake us up before the database had time to recover
+          long deadline = System.nanoTime() + retryIntervalNanos;
+          for (long remaining = retryIntervalNanos;
+              running && remaining > 0;
+              remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(this, remaining);
+          }
+          break;
+      }
+    }
+  }
+
+  enum ReplayResult {
+    REPLAYED,
+    EMPTY,
+    FAILED
+  }
+
+  /** Replays the oldest upload in the spool. Only called by one thread at a time. */
+  synchronized ReplayResult replayNext() {
+    SpooledUpload upload;
+    try {
+      upload = spool.peek();
+    } catch (IOException e) {
+      logger.error("Could not read spool", e);
+      return ReplayResult.FAILED;
+    }
+    if (upload == null) {
+      return ReplayResult.EMPTY;
+    }
+    var now = UTCInstant.now();
+    var uploadTime =
+        upload.getNow().roundToNextBucket(releaseBucketDuration).isAfterEpochMillisOf(now)
+            ? upload.getNow()
+            : now;
+    try {
+      write(upload.getKeys(), uploadTime);
+    } catch (RuntimeException e) {
+      if (DataAccessErrors.isConnectionFailure(e)
+          || (DataAccessErrors.isDatabaseUnavailable(e) && ++attempts < MAX_ATTEMPTS)) {
+        logger.warn("Could not replay spooled upload, retrying later", e);
+        return ReplayResult.FAILED;
+      }
+      logger.error(
+          "Could not replay spooled upload of {} keys, replaying them one by one",
+          upload.getKeys().size(),
+          e);
+      if (!writeSeparately(upload.getKeys(), uploadTime)) {
+        return ReplayResult.FAILED;
+      }
+    }
+    attempts = 0;
+    spool.commit(upload);
+    return ReplayResult.REPLAYED;
+  }
+
+  /**
+   * Writes every key in its own transaction and drops the keys which fail.
+   *
+   * @return false if the database became unavailable. The upload is then replayed again later,
+   *     the keys which have been written already are ignored by the database.
+   */
+  private boolean writeSeparately(List<GaenKey> keys, UTCInstant now) {
+    for (GaenKey key : keys) {
+      try {
+        write(List.of(key), now);
+      } catch (RuntimeException e) {
+        if (DataAccessErrors.isConnectionFailure(e)) {
+          logger.warn("Could not replay spooled upload, retrying later", e);
+          return false;
+        }
+        droppedKeys.incrementAndGet();
+        logger.error("Could not replay spooled key, dropping it", e);
+      }
+    }
+    return true;
+  }
+
+  private void write(List<GaenKey> keys, UTCInstant now) {
+    transactions.executeWithoutResult(status -> delegate.upsertExposees(keys, now));
+  }
+}
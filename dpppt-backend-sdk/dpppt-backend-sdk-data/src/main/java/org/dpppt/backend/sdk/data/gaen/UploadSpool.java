@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * Journal of accepted uploads on local disk. Uploads are appended to memory-mapped segment files of
+ * a fixed size, named `upload-<sequence>.spool`, and read back in the same order.
+ *
+ * <p>Every record consists of its length, the CRC32 of its content and the content: the time of the
+ * upload followed by the keys. A record with length 0, or one whose checksum doesn't match, marks
+ * the end of a segment. Records torn by a crash are therefore ignored, and the next record
+ * overwrites them. Once all records of a segment have been committed, the segment is deleted.
+ *
+ * <p>Records are written under the lock of the spool, but forced to disk outside of it. Uploads
+ * which arrive while a force is running are forced together by the next one, so concurrent uploads
+ * share a single msync instead of waiting for one each.
+ *
+ * <p>Committed records of the current segment are replayed again after a restart, so consumers must
+ * be idempotent.
+ */
+public class UploadSpool implements AutoCloseable {
+
+  private static final String SUFFIX = ".spool";
+  private static final Pattern SEGMENT_NAME = Pattern.compile("upload-(\\d{19})\\" + SUFFIX);
+  private static final int HEADER_SIZE = 8;
+
+  private final Path directory;
+  private final int segmentSize;
+
+  // segments not completely committed yet, by sequence number
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+  private long writeSegment;
+  private int writePosition;
+  private int readPosition;
+  // records appended, and the segments they were written to since the last force
+  private long appendedRecords;
+  private final Set<MappedByteBuffer> unforcedSegments =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+
+  // held while forcing, records up to forcedRecords are on disk
+  private final Object forceLock = new Object();
+  private long forcedRecords;
+
+  /**
+   * Opens the spool in `directory`, recovering the segments left by a previous run.
+   *
+   * @param directory where the segments are stored, created if it doesn't exist
+   * @param segmentSize size of every segment in bytes, limits the size of a single upload
+   */
+  public UploadSpool(Path directory, int segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    Files.createDirectories(directory);
+    List<Path> existing;
+    try (var files = Files.list(directory)) {
+      existing =
+          files
+              .filter(f -> SEGMENT_NAME.matcher(f.getFileName().toString()).matches())
+              .collect(Collectors.toList());
+    }
+    for (Path file : existing) {
+      var matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+      matcher.matches();
+      segments.put(Long.parseLong(matcher.group(1)), map(file));
+    }
+    if (segments.isEmpty()) {
+      writeSegment = 0;
+      segments.put(writeSegment, map(segmentPath(writeSegment)));
+      writePosition = 0;
+    } else {
+      writeSegment = segments.lastKey();
+      var buffer = segments.get(writeSegment);
+      writePosition = 0;
+      while (readRecord(buffer, writePosition) != null) {
+        writePosition += HEADER_SIZE + buffer.getInt(writePosition);
+      }
+      // clear a torn record, so that it can't be mistaken for the end of a new record
+      for (int i = writePosition; i < segmentSize; i++) {
+        buffer.put(i, (byte) 0);
+      }
+      buffer.force();
+    }
+    readPosition = 0;
+  }
+
+  private Path segmentPath(long sequence) {
+    return directory.resolve(String.format("upload-%019d%s", sequence, SUFFIX));
+  }
+
+  private MappedByteBuffer map(Path file) throws IOException {
+    try (var channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // the mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+  }
+
+  /**
+   * Appends an upload and forces it to disk. Returns once the upload is on disk.
+   *
+   * @param keys the uploaded keys
+   * @param now time of the upload
+   * @throws IOException if the segment can't be written, or the upload doesn't fit into one
+   */
+  public void append(List<GaenKey> keys, UTCInstant now) throws IOException {
+    byte[] content = encode(keys, now);
+    int recordSize = HEADER_SIZE + content.length;
+    if (recordSize > segmentSize) {
+      throw new IOException("Upload of " + recordSize + " bytes is larger than a spool segment");
+    }
+    force(write(content));
+  }
+
+  /** @return the number of the record */
+  private synchronized long write(byte[] content) throws IOException {
+    int recordSize = HEADER_SIZE + content.length;
+    if (writePosition + recordSize > segmentSize) {
+      writeSegment++;
+      segments.put(writeSegment, map(segmentPath(writeSegment)));
+      writePosition = 0;
+    }
+    var buffer = segments.get(writeSegment);
+    var crc = new CRC32();
+    crc.update(content);
+    buffer.duplicate().position(writePosition + HEADER_SIZE).put(content);
+    buffer.putInt(writePosition + 4, (int) crc.getValue());
+    // the length is written last, so that a record is only valid once it is complete
+    buffer.putInt(writePosition, content.length);
+    writePosition += recordSize;
+    unforcedSegments.add(buffer);
+    return ++appendedRecords;
+  }
+
+  /** Forces all records up to `record` to disk, together with the ones appended meanwhile. */
+  private void force(long record) {
+    synchronized (forceLock) {
+      if (forcedRecords >= record) {
+        // forced by a concurrent append
+        return;
+      }
+      long lastRecord;
+      List<MappedByteBuffer> buffers;
+      synchronized (this) {
+        lastRecord = appendedRecords;
+        buffers = new ArrayList<>(unforcedSegments);
+        unforcedSegments.clear();
+      }
+      for (var buffer : buffers) {
+        buffer.force();
+      }
+      forcedRecords = lastRecord;
+    }
+  }
+
+  /**
+   * Returns the oldest upload which hasn't been committed yet, without removing it.
+   *
+   * @return the upload, or null if all uploads have been committed
+   */
+  public synchronized SpooledUpload peek() throws IOException {
+    while (!segments.isEmpty()) {
+      long sequence = segments.firstKey();
+      var record = readRecord(segments.get(sequence), readPosition);
+      if (record != null) {
+        return decode(record, sequence, readPosition);
+      }
+      if (sequence == writeSegment) {
+        return null;
+      }
+      // all records of a full segment have been committed
+      segments.remove(sequence);
+      Files.deleteIfExists(segmentPath(sequence));
+      readPosition = 0;
+    }
+    return null;
+  }
+
+  /** Removes `upload` from the spool. It must be the upload last returned by {@link #peek()}. */
+  public synchronized void commit(SpooledUpload upload) {
+    if (segments.isEmpty()
+        || upload.segment != segments.firstKey()
+        || upload.position != readPosition) {
+      throw new IllegalStateException("Uploads must be committed in order");
+    }
+    readPosition = upload.nextPosition;
+  }
+
+  /** @return true if all uploads have been committed */
+  public synchronized boolean isEmpty() {
+    return segments.size() == 1 && readPosition == writePosition;
+  }
+
+  @Override
+  public synchronized void close() {
+    for (var buffer : segments.values()) {
+      buffer.force();
+    }
+  }
+
+  private ByteBuffer readRecord(MappedByteBuffer buffer, int position) {
+    if (position + HEADER_SIZE > segmentSize) {
+      return null;
+    }
+    int length = buffer.getInt(position);
+    if (length <= 0 || position + HEADER_SIZE + length > segmentSize) {
+      return null;
+    }
+    var content = buffer.duplicate();
+    content.position(position + HEADER_SIZE).limit(position + HEADER_SIZE + length);
+    var crc = new CRC32();
+    crc.update(content.duplicate());
+    if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+      return null;
+    }
+    return content.slice();
+  }
+
+  private static byte[] encode(List<GaenKey> keys, UTCInstant now) {
+    int size = Long.BYTES + Integer.BYTES;
+    List<byte[]> keyData = new ArrayList<>(keys.size());
+    for (GaenKey key : keys) {
+      byte[] data = key.getKeyBytes();
+      keyData.add(data);
+      size += Short.BYTES + data.length + 3 * Integer.BYTES;
+    }
+    var content = ByteBuffer.allocate(size);
+    content.putLong(now.getTimestamp());
+    content.putInt(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      GaenKey key = keys.get(i);
+      content.putShort((short) keyData.get(i).length);
+      content.put(keyData.get(i));
+      content.putInt(key.getRollingStartNumber());
+      content.putInt(key.getRollingPeriod());
+      content.putInt(key.getTransmissionRiskLevel());
+    }
+    return content.array();
+  }
+
+  private static SpooledUpload decode(ByteBuffer content, long segment, int position) {
+    int nextPosition = position + HEADER_SIZE + content.remaining();
+    var now = UTCInstant.ofEpochMillis(content.getLong());
+    int count = content.getInt();
+    List<GaenKey> keys = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte[] data = new byte[content.getShort()];
+      content.get(data);
+      var key = new GaenKey();
+      key.setKeyBytes(data);
+      key.setRollingStartNumber(content.getInt());
+      key.setRollingPeriod(content.getInt());
+      key.setTransmissionRiskLevel(content.getInt());
+      keys.add(key);
+    }
+    return new SpooledUpload(keys, now, segment, position, nextPosition);
+  }
+
+  /** An upload read from the spool. */
+  public static final class SpooledUpload {
+    private final List<GaenKey> keys;
+    private final UTCInstant now;
+    private final long segment;
+    private final int position;
+    private final int nextPosition;
+
+    private SpooledUpload(
+        List<GaenKey> keys, UTCInstant now, long segment, int position, int nextPosition) {
+      this.keys = keys;
+      this.now = now;
+      this.segment = segment;
+      this.position = position;
+      this.nextPosition = nextPosition;
+    }
+
+    public List<GaenKey> getKeys() {
+      return keys;
+    }
+
+    /** @return the time of the upload */
+    public UTCInstant getNow() {
+      return now;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionOperations;
+
+/**
+ * Collects the keys of many uploads and writes them in a few large transactions. Since
+ * `received_at` is set to the end of the current release bucket, delaying the insert by a fraction
+ * of the bucket doesn't change what clients see: the keys of the current bucket are never
+ * published. Keys which are written after their bucket has ended are inserted as if they were
+ * uploaded now, like {@link SpooledGAENDataService} does, otherwise they would be added to a bucket
+ * clients may already have downloaded.
+ *
+ * <p>Uploads are put into a lock-free queue holding at most `capacity` keys. A background thread
+ * drains it every `flushInterval`, or as soon as `batchSize` keys are waiting, and inserts the keys
+ * of every release bucket in batches of `batchSize`. If the queue is full, the uploading thread
+ * writes its keys itself, which slows down clients instead of dropping keys. Keys which could not
+ * be written because the database is unavailable are put back into the queue and retried with an
+ * increasing delay, so an outage delays them but doesn't lose them. A key which is rejected by the
+ * database is dropped, and so is a key which failed with a transient error `MAX_KEY_ATTEMPTS` times
+ * on its own. Dropped keys are logged and counted. On {@link #shutdown()} the remaining keys are
+ * written.
+ *
+ * <p>All other methods are passed to the delegate.
+ */
+public class WriteBehindGAENDataService implements GAENDataService {
+
+  private static final Logger logger = LoggerFactory.getLogger(WriteBehindGAENDataService.class);
+
+  private static final long MAX_RETRY_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+  private static final int SHUTDOWN_ATTEMPTS = 5;
+  private static final int MAX_KEY_ATTEMPTS = 5;
+
+  private final GAENDataService delegate;
+  private final TransactionOperations transactions;
+  private final Duration releaseBucketDuration;
+  private final int capacity;
+  private final int batchSize;
+  private final long flushIntervalNanos;
+
+  private final ConcurrentLinkedQueue<PendingUpload> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queuedKeys = new AtomicInteger();
+  private final AtomicInteger droppedKeys = new AtomicInteger();
+  private final Thread flusher;
+  private volatile boolean running = true;
+
+  /**
+   * @param delegate the data service writing to the database
+   * @param transactions runs every batch in its own transaction
+   * @param releaseBucketDuration uploads are only combined within the same bucket
+   * @param capacity maximum number of queued keys
+   * @param batchSize maximum number of keys written in one transaction
+   * @param flushInterval maximum time keys wait in the queue
+   */
+  public WriteBehindGAENDataService(
+      GAENDataService delegate,
+      TransactionOperations transactions,
+      Duration releaseBucketDuration,
+      int capacity,
+      int batchSize,
+      Duration flushInterval) {
+    this.delegate = delegate;
+    this.transactions = transactions;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.capacity = capacity;
+    this.batchSize = Math.max(batchSize, 1);
+    this.flushIntervalNanos = flushInterval.toNanos();
+    this.flusher = new Thread(this::run, "gaen-write-behind");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  @Override
+  public void upsertExposees(List<GaenKey> keys, UTCInstant now) {
+    if (keys.isEmpty()) {
+      return;
+    }
+    if (!running || !reserve(keys.size())) {
+      // backpressure: write synchronously, so the client waits for the database
+      write(keys, now);
+      return;
+    }
+    queue.add(new PendingUpload(List.copyOf(keys), now, 0));
+    if (queuedKeys.get() >= batchSize) {
+      LockSupport.unpark(flusher);
+    }
+  }
+
+  private boolean reserve(int keys) {
+    int queued;
+    do {
+      queued = queuedKeys.get();
+      if (queued + keys > capacity) {
+        return false;
+      }
+    } while (!queuedKeys.compareAndSet(queued, queued + keys));
+    return true;
+  }
+
+  @Override
+  public void upsertExposeesDelayed(
+      List<GaenKey> keys, UTCInstant delayedReceivedAt, UTCInstant now) {
+    delegate.upsertExposeesDelayed(keys, delayedReceivedAt, now);
+  }
+
+  @Override
+  @Transactional(readOnly = true)
+  public List<GaenKey> getSortedExposedForKeyDate(
+      UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now) {
+    return delegate.getSortedExposedForKeyDate(keyDate, publishedAfter, publishedUntil, now);
+  }
+
+  @Override
+  public void cleanDB(Duration retentionPeriod) {
+    delegate.cleanDB(retentionPeriod);
+  }
+
+  /** @return the number of keys waiting to be written */
+  public int getQueuedKeys() {
+    return queuedKeys.get();
+  }
+
+  /** @return the number of keys which were dropped because they could not be written */
+  public int getDroppedKeys() {
+    return droppedKeys.get();
+  }
+
+  /**
+   * Stops the background thread and writes all queued keys. If the database stays unavailable, the
+   * keys which are still queued are logged as lost.
+   */
+  @Override
+  public void shutdown() throws InterruptedException {
+    running = false;
+    LockSupport.unpark(flusher);
+    flusher.join(TimeUnit.SECONDS.toMillis(30));
+    for (int attempt = 1; !flush() && attempt < SHUTDOWN_ATTEMPTS; attempt++) {
+      Thread.sleep(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos));
+    }
+    if (queuedKeys.get() > 0) {
+      logger.error("Could not write {} queued keys before shutdown", queuedKeys.get());
+    }
+    delegate.shutdown();
+  }
+
+  private void run() {
+    long retryIntervalNanos = flushIntervalNanos;
+    while (running) {
+      if (queuedKeys.get() < batchSize) {
+        LockSupport.parkNanos(this, flushIntervalNanos);
+      }
+      boolean complete;
+      try {
+        complete = flush();
+      } catch (RuntimeException e) {
+        logger.error("Write-behind flush failed", e);
+        complete = false;
+      }
+      if (complete) {
+        retryIntervalNanos = flushIntervalNanos;
+        continue;
+      }
+      // the failed keys are queued again, don't retry them before the database had time to recover
+      long deadline = System.nanoTime() + retryIntervalNanos;
+      for (long remaining = retryIntervalNanos;
+          running && remaining > 0;
+          remaining = deadline - System.nanoTime()) {
+        LockSupport.parkNanos(this, remaining);
+      }
+      retryIntervalNanos = Math.min(retryIntervalNanos * 2, MAX_RETRY_INTERVAL_NANOS);
+    }
+  }
+
+  /**
+   * Drains the queue and writes its keys, grouped by release bucket. Keys which could not be
+   * written are put back into the queue.
+   *
+   * @return true if all keys were written
+   */
+  synchronized boolean flush() {
+    Map<Long, PendingBucket> buckets = new LinkedHashMap<>();
+    PendingUpload upload;
+    while ((upload = queue.poll()) != null) {
+      queuedKeys.addAndGet(-upload.keys.size());
+      long bucket = upload.now.roundToNextBucket(releaseBucketDuration).getTimestamp();
+      buckets.computeIfAbsent(bucket, b -> new PendingBucket()).add(upload);
+    }
+    boolean complete = true;
+    boolean databaseAvailable = true;
+    var now = UTCInstant.now();
+    for (PendingBucket bucket : buckets.values()) {
+      if (!bucket.now.roundToNextBucket(releaseBucketDuration).isAfterEpochMillisOf(now)) {
+        bucket.now = now;
+      }
+      for (int start = 0; start < bucket.keys.size(); start += batchSize) {
+        int end = Math.min(start + batchSize, bucket.keys.size());
+        var batch = bucket.keys.subList(start, end);
+        var attempts = bucket.attempts.subList(start, end);
+        if (!databaseAvailable) {
+          requeue(batch, attempts, bucket.now);
+          continue;
+        }
+        try {
+          write(batch, bucket.now);
+        } catch (RuntimeException e) {
+          complete = false;
+          if (DataAccessErrors.isConnectionFailure(e)) {
+            logger.warn("Could not write {} keys, retrying later", batch.size(), e);
+            databaseAvailable = false;
+            requeue(batch, attempts, bucket.now);
+          } else {
+            logger.warn(
+                "Could not write {} keys in one batch, retrying one by one", batch.size(), e);
+            databaseAvailable = writeSeparately(batch, attempts, bucket.now);
+          }
+        }
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * Writes every key in its own transaction, so a single bad key doesn't hold back the others.
+   * Keys which fail with a transient error are retried later, all others are dropped.
+   *
+   * @param attempts the number of failed attempts of every key
+   * @return false if the database became unavailable
+   */
+  private boolean writeSeparately(List<GaenKey> keys, List<Integer> attempts, UTCInstant now) {
+    for (int i = 0; i < keys.size(); i++) {
+      var key = List.of(keys.get(i));
+      try {
+        write(key, now);
+      } catch (RuntimeException e) {
+        if (DataAccessErrors.isConnectionFailure(e)) {
+          logger.warn("Could not write {} keys, retrying later", keys.size() - i, e);
+          requeue(keys.subList(i, keys.size()), attempts.subList(i, keys.size()), now);
+          return false;
+        }
+        int failed = attempts.get(i) + 1;
+        if (DataAccessErrors.isDatabaseUnavailable(e) && failed < MAX_KEY_ATTEMPTS) {
+          logger.warn("Could not write key, retrying later", e);
+          requeue(key, List.of(failed), now);
+        } else {
+          droppedKeys.incrementAndGet();
+          logger.error("Could not write key after {} attempts, dropping it", failed, e);
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Queues the keys again, in one upload for every run of keys with the same attempts. */
+  private void requeue(List<GaenKey> keys, List<Integer> attempts, UTCInstant now) {
+    // the keys were accepted already, so they are queued even if that exceeds the capacity
+    queuedKeys.addAndGet(keys.size());
+    int start = 0;
+    for (int i = 1; i <= keys.size(); i++) {
+      if (i == keys.size() || !attempts.get(i).equals(attempts.get(start))) {
+        queue.add(new PendingUpload(List.copyOf(keys.subList(start, i)), now, attempts.get(start)));
+        start = i;
+      }
+    }
+  }
+
+  private void write(List<GaenKey> keys, UTCInstant now) {
+    transactions.executeWithoutResult(status -> delegate.upsertExposees(keys, now));
+  }
+
+  private static final class PendingUpload {
+    private final List<GaenKey> keys;
+    private final UTCInstant now;
+    // failed attempts to write the keys on their own
+    private final int attempts;
+
+    PendingUpload(List<GaenKey> keys, UTCInstant now, int attempts) {
+      this.keys = keys;
+      this.now = now;
+      this.attempts = attempts;
+    }
+  }
+
+  private static final class PendingBucket {
+    private final List<GaenKey> keys = new ArrayList<>();
+    // failed attempts of every key
+    private final List<Integer> attempts = new ArrayList<>();
+    // all uploads of a bucket get the same received_at, so any of their timestamps will do
+    private UTCInstant now;
+
+    void add(PendingUpload upload) {
+      if (now == null) {
+        now = upload.now;
+      }
+      keys.addAll(upload.keys);
+      attempts.addAll(Collections.nCopies(upload.keys.size(), upload.attempts));
+    }
+  }
+}
@@ -0,0 +1,18 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- Store the 16 byte keys as binary instead of Base64 text and shrink the small
+-- integer columns. HSQLDB is only used in memory, so there are no rows to convert.
+
+DELETE FROM t_gaen_exposed;
+ALTER TABLE t_gaen_exposed ALTER COLUMN key SET DATA TYPE VARBINARY(16);
+ALTER TABLE t_gaen_exposed ALTER COLUMN rolling_period SET DATA TYPE SmallInt;
+ALTER TABLE t_gaen_exposed ALTER COLUMN transmission_risk_level SET DATA TYPE SmallInt;
+
+DELETE FROM t_debug_gaen_exposed;
+ALTER TABLE t_debug_gaen_exposed ALTER COLUMN key SET DATA TYPE VARBINARY(16);
+ALTER TABLE t_debug_gaen_exposed ALTER COLUMN rolling_period SET DATA TYPE SmallInt;
+ALTER TABLE t_debug_gaen_exposed ALTER COLUMN transmission_risk_level SET DATA TYPE SmallInt;
@@ -0,0 +1,10 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- Exports select the keys of one key date which were received within a range.
+-- HSQLDB doesn't support included columns, so only the key columns are indexed.
+
+CREATE INDEX gaen_exposed_export ON t_gaen_exposed (rolling_start_number, received_at);
@@ -0,0 +1,18 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- Store the 16 byte keys as binary instead of Base64 text and shrink the small
+-- integer columns. The unique constraints are rebuilt on the binary keys.
+
+ALTER TABLE t_gaen_exposed
+ ALTER COLUMN key TYPE bytea USING decode(key, 'base64'),
+ ALTER COLUMN rolling_period TYPE SmallInt,
+ ALTER COLUMN transmission_risk_level TYPE SmallInt;
+
+ALTER TABLE t_debug_gaen_exposed
+ ALTER COLUMN key TYPE bytea USING decode(key, 'base64'),
+ ALTER COLUMN rolling_period TYPE SmallInt,
+ ALTER COLUMN transmission_risk_level TYPE SmallInt;
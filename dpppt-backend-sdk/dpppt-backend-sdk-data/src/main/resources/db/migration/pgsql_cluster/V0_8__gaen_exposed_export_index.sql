@@ -0,0 +1,20 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- Exports select the keys of one key date which were received within a range,
+-- so index the rolling start number first. All other selected columns are
+-- included, so that exports can be answered by an index only scan.
+--
+-- The index is built concurrently, so uploads aren't blocked while it is built
+-- on a large t_gaen_exposed. Flyway runs this migration outside of a
+-- transaction, which is why it must not contain any other statement. If the
+-- build fails, the invalid index left behind is dropped when the migration is
+-- repeated.
+
+DROP INDEX CONCURRENTLY IF EXISTS gaen_exposed_export;
+
+CREATE INDEX CONCURRENTLY gaen_exposed_export ON t_gaen_exposed (rolling_start_number, received_at)
+    INCLUDE (pk_exposed_id, key, rolling_period, transmission_risk_level);
@@ -0,0 +1,17 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- The last run of every scheduled job which runs once for the whole cluster.
+
+CREATE TABLE t_job_run(
+ job_name Character varying(100) NOT NULL,
+ node Character varying(200) NOT NULL,
+ started_at Timestamp with time zone NOT NULL,
+ finished_at Timestamp with time zone,
+ succeeded Boolean
+);
+
+ALTER TABLE t_job_run ADD CONSTRAINT PK_t_job_run PRIMARY KEY (job_name);
@@ -0,0 +1,112 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- Range-partition t_gaen_exposed by the UTC day of received_at. Expired keys are
+-- removed by dropping whole partitions instead of deleting rows, and the export
+-- queries only scan the partitions of the requested publish range.
+--
+-- Unique constraints of a partitioned table must contain the partition key, so
+-- gaen_exposed_key only prevents duplicates within the same received_at. Inserts
+-- check the other partitions for the key themselves, holding an advisory lock
+-- per key.
+--
+-- This migration is versioned after all migrations of db/migration/pgsql and
+-- pgsql_cluster, so that ws.exposedlist.partitioned can also be turned on for a
+-- database which has already been migrated without it. Add further migrations of
+-- those folders with a higher version than this one.
+
+ALTER TABLE t_gaen_exposed RENAME TO t_gaen_exposed_unpartitioned;
+ALTER TABLE t_gaen_exposed_unpartitioned RENAME CONSTRAINT PK_t_gaen_exposed TO PK_t_gaen_exposed_unpartitioned;
+ALTER TABLE t_gaen_exposed_unpartitioned RENAME CONSTRAINT gaen_exposed_key TO gaen_exposed_key_unpartitioned;
+ALTER INDEX gaen_exposed_export RENAME TO gaen_exposed_export_unpartitioned;
+
+CREATE TABLE t_gaen_exposed(
+ pk_exposed_id Integer DEFAULT nextval('t_gaen_exposed_pk_exposed_id_seq') NOT NULL,
+ key bytea NOT NULL,
+ rolling_start_number Int NOT NULL,
+ rolling_period SmallInt NOT NULL,
+ transmission_risk_level SmallInt NOT NULL,
+ received_at Timestamp with time zone DEFAULT now() NOT NULL,
+ CONSTRAINT PK_t_gaen_exposed PRIMARY KEY (pk_exposed_id, received_at),
+ CONSTRAINT gaen_exposed_key UNIQUE (key, received_at)
+) PARTITION BY RANGE (received_at);
+
+ALTER SEQUENCE t_gaen_exposed_pk_exposed_id_seq OWNED BY t_gaen_exposed.pk_exposed_id;
+
+-- Only used if the partition of a day hasn't been created in time
+CREATE TABLE t_gaen_exposed_default PARTITION OF t_gaen_exposed DEFAULT;
+
+-- Creates the missing partitions t_gaen_exposed_YYYYMMDD for all days from
+-- range_start until range_end. Rows of such a day in the default partition would
+-- make creating its partition fail, so they are moved into the new partition.
+CREATE FUNCTION gaen_exposed_create_partitions(
+ range_start Timestamp with time zone,
+ range_end Timestamp with time zone) RETURNS void LANGUAGE 'plpgsql'
+AS $BODY$
+DECLARE
+ partition_day Date := (range_start AT TIME ZONE 'UTC')::date;
+ partition_name Text;
+ day_start Timestamp with time zone;
+ day_end Timestamp with time zone;
+BEGIN
+ WHILE partition_day <= (range_end AT TIME ZONE 'UTC')::date LOOP
+  partition_name := 't_gaen_exposed_' || to_char(partition_day, 'YYYYMMDD');
+  day_start := partition_day::timestamp AT TIME ZONE 'UTC';
+  day_end := (partition_day + 1)::timestamp AT TIME ZONE 'UTC';
+  IF to_regclass(quote_ident(partition_name)) IS NULL THEN
+   -- no new rows of the day may arrive in the default partition until it is created
+   LOCK TABLE t_gaen_exposed_default IN EXCLUSIVE MODE;
+   CREATE TEMPORARY TABLE gaen_exposed_moved (LIKE t_gaen_exposed) ON COMMIT DROP;
+   WITH moved AS (
+    DELETE FROM t_gaen_exposed_default
+     WHERE received_at >= day_start AND received_at < day_end
+     RETURNING *)
+   INSERT INTO gaen_exposed_moved SELECT * FROM moved;
+   EXECUTE format(
+    'CREATE TABLE %I PARTITION OF t_gaen_exposed FOR VALUES FROM (%L) TO (%L)',
+    partition_name, day_start, day_end);
+   INSERT INTO t_gaen_exposed SELECT * FROM gaen_exposed_moved;
+   DROP TABLE gaen_exposed_moved;
+  END IF;
+  partition_day := partition_day + 1;
+ END LOOP;
+END $BODY$;
+
+-- Drops the partitions of the days which ended before retention_time, and removes
+-- expired rows from the default partition.
+CREATE FUNCTION gaen_exposed_drop_partitions(
+ retention_time Timestamp with time zone) RETURNS void LANGUAGE 'plpgsql'
+AS $BODY$
+DECLARE
+ expired Record;
+BEGIN
+ FOR expired IN
+  SELECT child.relname FROM pg_inherits
+   JOIN pg_class parent ON pg_inherits.inhparent = parent.oid
+   JOIN pg_class child ON pg_inherits.inhrelid = child.oid
+   WHERE parent.relname = 't_gaen_exposed'
+    AND child.relname ~ '^t_gaen_exposed_[0-9]{8}$'
+    AND (to_date(right(child.relname, 8), 'YYYYMMDD') + 1)::timestamp AT TIME ZONE 'UTC'
+     <= retention_time
+ LOOP
+  EXECUTE format('DROP TABLE %I', expired.relname);
+ END LOOP;
+ DELETE FROM t_gaen_exposed_default WHERE received_at < retention_time;
+END $BODY$;
+
+SELECT gaen_exposed_create_partitions(
+ coalesce((SELECT min(received_at) FROM t_gaen_exposed_unpartitioned), now()),
+ now() + interval '7 days');
+
+INSERT INTO t_gaen_exposed (pk_exposed_id, key, rolling_start_number, rolling_period, transmission_risk_level, received_at)
+ SELECT pk_exposed_id, key, rolling_start_number, rolling_period, transmission_risk_level, received_at
+ FROM t_gaen_exposed_unpartitioned;
+
+DROP TABLE t_gaen_exposed_unpartitioned;
+
+-- see V0_8__gaen_exposed_export_index.sql, created on every partition
+CREATE INDEX gaen_exposed_export ON t_gaen_exposed (rolling_start_number, received_at)
+    INCLUDE (pk_exposed_id, key, rolling_period, transmission_risk_level);
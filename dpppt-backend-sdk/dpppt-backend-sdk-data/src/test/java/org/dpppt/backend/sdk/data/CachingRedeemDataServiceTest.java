@@ -0,0 +1,115 @@
+package org.dpppt.backend.sdk.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+
+public class CachingRedeemDataServiceTest {
+
+  private static class RecordingDataService implements RedeemDataService {
+    final List<String> checked = new ArrayList<>();
+    // received_at by uuid, like t_redeem_uuid
+    final Map<String, UTCInstant> redeemed = new HashMap<>();
+
+    @Override
+    public synchronized boolean checkAndInsertPublishUUID(String uuid) {
+      checked.add(uuid);
+      return redeemed.putIfAbsent(uuid, UTCInstant.today().plusDays(1)) == null;
+    }
+
+    @Override
+    public synchronized void cleanDB(Duration retentionPeriod) {
+      var retentionTime = UTCInstant.now().minus(retentionPeriod);
+      redeemed.values().removeIf(receivedAt -> receivedAt.isBeforeEpochMillisOf(retentionTime));
+    }
+  }
+
+  @Test
+  public void testReplayIsAnsweredFromCache() {
+    var delegate = new RecordingDataService();
+    var service = new CachingRedeemDataService(delegate, 1000, 4);
+
+    assertTrue(service.checkAndInsertPublishUUID("a"));
+    assertFalse(service.checkAndInsertPublishUUID("a"));
+    assertFalse(service.checkAndInsertPublishUUID("a"));
+    assertTrue(service.checkAndInsertPublishUUID("b"));
+    assertEquals(List.of("a", "b"), delegate.checked);
+  }
+
+  @Test
+  public void testUUIDsRedeemedElsewhereAreCached() {
+    var delegate = new RecordingDataService();
+    delegate.checkAndInsertPublishUUID("a");
+    delegate.checked.clear();
+    var service = new CachingRedeemDataService(delegate, 1000, 4);
+
+    assertFalse(service.checkAndInsertPublishUUID("a"));
+    assertFalse(service.checkAndInsertPublishUUID("a"));
+    assertEquals(List.of("a"), delegate.checked);
+  }
+
+  @Test
+  public void testEntriesExpireWithCleanDB() throws Exception {
+    var delegate = new RecordingDataService();
+    var service = new CachingRedeemDataService(delegate, 1000, 4);
+    var today = UTCInstant.today();
+    try (var clock = UTCInstant.setClock(fixedClock(today.plusHours(12)))) {
+      service.checkAndInsertPublishUUID("a");
+    }
+    try (var clock = UTCInstant.setClock(fixedClock(today.plusDays(1).plusHours(12)))) {
+      service.checkAndInsertPublishUUID("b");
+      service.cleanDB(Duration.ofDays(2));
+      assertEquals(2, service.size());
+    }
+    try (var clock = UTCInstant.setClock(fixedClock(today.plusDays(3).plusHours(12)))) {
+      service.cleanDB(Duration.ofDays(2));
+      assertEquals(1, service.size());
+      // a is gone from the database as well, so the delegate decides again
+      assertTrue(service.checkAndInsertPublishUUID("a"));
+      assertFalse(service.checkAndInsertPublishUUID("b"));
+    }
+  }
+
+  @Test
+  public void testEntriesExpireWithoutCleanDB() throws Exception {
+    var delegate = new RecordingDataService();
+    var service = new CachingRedeemDataService(delegate, 1000, 4);
+    var today = UTCInstant.today();
+    try (var clock = UTCInstant.setClock(fixedClock(today.plusHours(12)))) {
+      service.checkAndInsertPublishUUID("a");
+    }
+    try (var clock = UTCInstant.setClock(fixedClock(today.plusDays(3).plusHours(12)))) {
+      // another instance cleaned the database
+      delegate.cleanDB(Duration.ofDays(2));
+      service.expire(Duration.ofDays(2));
+      assertEquals(0, service.size());
+      assertTrue(service.checkAndInsertPublishUUID("a"));
+    }
+  }
+
+  @Test
+  public void testSizeIsLimited() {
+    var delegate = new RecordingDataService();
+    var service = new CachingRedeemDataService(delegate, 16, 4);
+    for (int i = 0; i < 1000; i++) {
+      service.checkAndInsertPublishUUID("uuid" + i);
+    }
+    assertTrue(service.size() <= 16);
+    // evicted uuids are still rejected by the delegate
+    assertFalse(service.checkAndInsertPublishUUID("uuid0"));
+  }
+
+  private static Clock fixedClock(UTCInstant instant) {
+    return Clock.fixed(instant.getInstant(), ZoneOffset.UTC);
+  }
+}
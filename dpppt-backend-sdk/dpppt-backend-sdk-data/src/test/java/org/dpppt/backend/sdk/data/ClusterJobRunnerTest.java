@@ -0,0 +1,92 @@
+package org.dpppt.backend.sdk.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.config.FlyWayConfig;
+import org.dpppt.backend.sdk.data.config.StandaloneDataConfig;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(
+    loader = AnnotationConfigContextLoader.class,
+    classes = {StandaloneDataConfig.class, FlyWayConfig.class})
+@ActiveProfiles("hsqldb")
+public class ClusterJobRunnerTest {
+
+  private static final Duration INTERVAL = Duration.ofHours(1);
+
+  @Autowired private DataSource dataSource;
+
+  @After
+  public void tearDown() {
+    new JdbcTemplate(dataSource).execute("truncate table t_job_run");
+  }
+
+  @Test
+  public void testJobRunsOncePerInterval() throws Exception {
+    var node1 = new ClusterJobRunner("hsqldb", dataSource, "node1");
+    var node2 = new ClusterJobRunner("hsqldb", dataSource, "node2");
+    var runs = new AtomicInteger();
+    var start = UTCInstant.today().plusHours(3);
+
+    try (var clock = UTCInstant.setClock(fixedClock(start.plusMinutes(10)))) {
+      assertTrue(node1.runOnce("job", INTERVAL, runs::incrementAndGet));
+    }
+    try (var clock = UTCInstant.setClock(fixedClock(start.plusMinutes(40)))) {
+      assertFalse(node2.runOnce("job", INTERVAL, runs::incrementAndGet));
+      assertFalse(node1.runOnce("job", INTERVAL, runs::incrementAndGet));
+      // other jobs aren't affected
+      assertTrue(node2.runOnce("otherJob", INTERVAL, runs::incrementAndGet));
+    }
+    try (var clock = UTCInstant.setClock(fixedClock(start.plusMinutes(70)))) {
+      assertTrue(node2.runOnce("job", INTERVAL, runs::incrementAndGet));
+    }
+    assertEquals(3, runs.get());
+
+    var lastRuns = node1.getLastRuns();
+    assertEquals(2, lastRuns.size());
+    var lastRun = lastRuns.get(0);
+    assertEquals("job", lastRun.getJobName());
+    assertEquals("node2", lastRun.getNode());
+    assertEquals(start.plusMinutes(70).getTimestamp(), lastRun.getStartedAt().getTimestamp());
+    assertEquals(Duration.ZERO, lastRun.getDuration());
+    assertTrue(lastRun.isSucceeded());
+  }
+
+  @Test
+  public void testFailedJobIsRecorded() {
+    var runner = new ClusterJobRunner("hsqldb", dataSource, "node1");
+    assertTrue(
+        runner.runOnce(
+            "job",
+            INTERVAL,
+            () -> {
+              // a job started concurrently sees the running job
+              assertFalse(runner.runOnce("job", INTERVAL, () -> {}));
+              throw new IllegalStateException("failed");
+            }));
+    var lastRun = runner.getLastRuns().get(0);
+    assertEquals("node1", lastRun.getNode());
+    assertFalse(lastRun.isSucceeded());
+  }
+
+  private static Clock fixedClock(UTCInstant instant) {
+    return Clock.fixed(instant.getInstant(), ZoneOffset.UTC);
+  }
+}
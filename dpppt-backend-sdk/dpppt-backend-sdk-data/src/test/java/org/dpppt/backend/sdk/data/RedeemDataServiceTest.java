@@ -0,0 +1,81 @@
+package org.dpppt.backend.sdk.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.config.FlyWayConfig;
+import org.dpppt.backend.sdk.data.config.RedeemDataServiceConfig;
+import org.dpppt.backend.sdk.data.config.StandaloneDataConfig;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(
+    loader = AnnotationConfigContextLoader.class,
+    classes = {StandaloneDataConfig.class, FlyWayConfig.class, RedeemDataServiceConfig.class})
+@ActiveProfiles("hsqldb")
+public class RedeemDataServiceTest {
+
+  private static final int THREADS = 16;
+
+  @Autowired private RedeemDataService redeemDataService;
+  @Autowired private DataSource dataSource;
+
+  @After
+  public void tearDown() {
+    new JdbcTemplate(dataSource).execute("truncate table t_redeem_uuid");
+  }
+
+  @Test
+  public void testRedeemUUID() {
+    assertTrue(redeemDataService.checkAndInsertPublishUUID("bc77d983-2359-48e8-835a-de673fe53ccb"));
+    assertFalse(
+        redeemDataService.checkAndInsertPublishUUID("bc77d983-2359-48e8-835a-de673fe53ccb"));
+    assertTrue(redeemDataService.checkAndInsertPublishUUID("1c444adb-0924-4dc4-a7eb-1f52aa6b9575"));
+  }
+
+  @Test
+  public void testConcurrentRedeemOfSameUUID() throws Exception {
+    var executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      for (int round = 0; round < 10; round++) {
+        String uuid = "bc77d983-2359-48e8-835a-de673fe5300" + round;
+        var start = new CountDownLatch(1);
+        Callable<Boolean> redeem =
+            () -> {
+              start.await();
+              return redeemDataService.checkAndInsertPublishUUID(uuid);
+            };
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+          results.add(executor.submit(redeem));
+        }
+        start.countDown();
+        int redeemed = 0;
+        for (var result : results) {
+          if (result.get()) {
+            redeemed++;
+          }
+        }
+        assertEquals(1, redeemed);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
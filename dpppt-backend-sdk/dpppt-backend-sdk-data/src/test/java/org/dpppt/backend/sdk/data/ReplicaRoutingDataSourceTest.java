@@ -0,0 +1,140 @@
+package org.dpppt.backend.sdk.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.List;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class ReplicaRoutingDataSourceTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+
+  private EmbeddedDatabase primary;
+  private EmbeddedDatabase replica;
+  private volatile Duration replicaLag = Duration.ZERO;
+  private volatile boolean replicaDown = false;
+  private ReplicaRoutingDataSource dataSource;
+
+  @Before
+  public void setUp() {
+    primary = createDatabase("primary");
+    replica = createDatabase("replica");
+    DataSource failingReplica =
+        new AbstractDataSource() {
+          @Override
+          public Connection getConnection() throws SQLException {
+            if (replicaDown) {
+              throw new SQLException("replica is down");
+            }
+            return replica.getConnection();
+          }
+
+          @Override
+          public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection();
+          }
+        };
+    dataSource =
+        new ReplicaRoutingDataSource(
+            primary,
+            List.of(failingReplica),
+            Duration.ofSeconds(10),
+            Duration.ofHours(1),
+            BUCKET_LENGTH,
+            r -> replicaLag);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    UTCInstant.resetClock();
+    dataSource.close();
+  }
+
+  private static EmbeddedDatabase createDatabase(String name) {
+    var db =
+        new EmbeddedDatabaseBuilder()
+            .generateUniqueName(true)
+            .setType(EmbeddedDatabaseType.HSQL)
+            .build();
+    var jt = new JdbcTemplate(db);
+    jt.execute("create table t_name(name varchar(20))");
+    jt.update("insert into t_name values (?)", name);
+    return db;
+  }
+
+  private String readName(boolean readOnly) {
+    var transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    transactions.setReadOnly(readOnly);
+    var jt = new JdbcTemplate(dataSource);
+    return transactions.execute(
+        status -> jt.queryForObject("select name from t_name", String.class));
+  }
+
+  @Test
+  public void testReadOnlyTransactionsUseReplica() {
+    assertEquals("replica", readName(true));
+    assertEquals("primary", readName(false));
+    // outside of transactions
+    assertEquals(
+        "primary",
+        new JdbcTemplate(dataSource).queryForObject("select name from t_name", String.class));
+  }
+
+  @Test
+  public void testLaggingReplicaIsNotUsed() {
+    replicaLag = Duration.ofSeconds(11);
+    dataSource.checkReplicas();
+    assertEquals("primary", readName(true));
+
+    replicaLag = Duration.ofSeconds(1);
+    dataSource.checkReplicas();
+    assertEquals("replica", readName(true));
+  }
+
+  @Test
+  public void testFailingReplicaFallsBackToPrimary() {
+    replicaDown = true;
+    assertEquals("primary", readName(true));
+
+    // not used until the next check succeeds
+    replicaDown = false;
+    assertEquals("primary", readName(true));
+    dataSource.checkReplicas();
+    assertEquals("replica", readName(true));
+  }
+
+  @Test
+  public void testReplicaIsNotUsedBeforeItReplayedTheBucketStart() {
+    var bucketStart = UTCInstant.now().roundToNextBucket(BUCKET_LENGTH);
+    replicaLag = Duration.ofSeconds(1);
+    UTCInstant.setClock(Clock.fixed(bucketStart.minusSeconds(2).getInstant(), ZoneOffset.UTC));
+    dataSource.checkReplicas();
+    assertEquals("replica", readName(true));
+
+    // the last check doesn't cover the uploads right before the boundary
+    UTCInstant.resetClock();
+    UTCInstant.setClock(Clock.fixed(bucketStart.plusSeconds(1).getInstant(), ZoneOffset.UTC));
+    assertEquals("primary", readName(true));
+
+    UTCInstant.resetClock();
+    UTCInstant.setClock(Clock.fixed(bucketStart.plusSeconds(2).getInstant(), ZoneOffset.UTC));
+    dataSource.checkReplicas();
+    assertEquals("replica", readName(true));
+  }
+}
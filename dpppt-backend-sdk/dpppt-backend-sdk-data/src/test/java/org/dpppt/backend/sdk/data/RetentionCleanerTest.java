@@ -0,0 +1,77 @@
+package org.dpppt.backend.sdk.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.UUID;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.config.FlyWayConfig;
+import org.dpppt.backend.sdk.data.config.StandaloneDataConfig;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(
+    loader = AnnotationConfigContextLoader.class,
+    classes = {StandaloneDataConfig.class, FlyWayConfig.class})
+@ActiveProfiles("hsqldb")
+public class RetentionCleanerTest {
+
+  @Autowired private DataSource dataSource;
+
+  @After
+  public void tearDown() {
+    new NamedParameterJdbcTemplate(dataSource)
+        .getJdbcTemplate()
+        .execute("truncate table t_redeem_uuid");
+  }
+
+  @Test
+  public void testDeletesExpiredRowsInChunks() {
+    var now = UTCInstant.now();
+    var retentionTime = now.minusDays(2);
+    insertUUIDs(10, retentionTime.minusDays(1));
+    insertUUIDs(5, now);
+    // expired rows received after newer ones are deleted as well
+    insertUUIDs(2, retentionTime.minusDays(3));
+
+    var cleaner = new RetentionCleaner(dataSource, 4, 0, Duration.ZERO);
+    var result = cleaner.clean("t_redeem_uuid", "pk_redeem_uuid_id", retentionTime);
+
+    assertEquals(12, result.getDeletedRows());
+    assertEquals(3, result.getChunks());
+    assertEquals(Duration.ofDays(3), result.getLag());
+    assertEquals(5, count());
+
+    result = cleaner.clean("t_redeem_uuid", "pk_redeem_uuid_id", retentionTime);
+    assertEquals(0, result.getDeletedRows());
+    assertEquals(0, result.getChunks());
+    assertEquals(Duration.ZERO, result.getLag());
+    assertEquals(5, count());
+  }
+
+  private void insertUUIDs(int count, UTCInstant receivedAt) {
+    var jt = new NamedParameterJdbcTemplate(dataSource);
+    for (int i = 0; i < count; i++) {
+      jt.update(
+          "insert into t_redeem_uuid (uuid, received_at) values (:uuid, :received_at)",
+          new MapSqlParameterSource("uuid", UUID.randomUUID().toString())
+              .addValue("received_at", receivedAt.getDate()));
+    }
+  }
+
+  private int count() {
+    return new NamedParameterJdbcTemplate(dataSource)
+        .getJdbcTemplate()
+        .queryForObject("select count(*) from t_redeem_uuid", Integer.class);
+  }
+}
@@ -57,17 +57,18 @@ public class GaenDataServiceConfig {
 
   @Bean
   public RedeemDataService redeemDataService() {
-    return new JDBCRedeemDataServiceImpl(dataSource);
-  }
-
-  @Bean
-  public GAENDataService fakeService() {
-    return new JDBCGAENDataServiceImpl(
-        "hsql", fakeDataSource(), Duration.ofMillis(releaseBucketDuration), timeSkew);
+    return new JDBCRedeemDataServiceImpl(dbType, dataSource);
   }
 
   @Bean
   public FakeKeyService fakeKeyService() throws NoSuchAlgorithmException {
-    return new FakeKeyService(fakeService(), 10, 16, Duration.ofDays(21), randomkeysenabled);
+    return new FakeKeyService(
+        null,
+        10,
+        16,
+        Duration.ofDays(21),
+        Duration.ofMillis(releaseBucketDuration),
+        timeSkew,
+        randomkeysenabled);
   }
 }
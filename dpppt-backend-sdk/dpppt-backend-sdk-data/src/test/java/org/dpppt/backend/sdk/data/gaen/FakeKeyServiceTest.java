@@ -0,0 +1,82 @@
+package org.dpppt.backend.sdk.data.gaen;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+
+public class FakeKeyServiceTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+  private static final Duration TIME_SKEW = Duration.ofHours(2);
+  private static final byte[] SECRET = "fake key secret".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testFakeKeysAreDerivedFromSecret() throws Exception {
+    Clock fourOClock = Clock.fixed(UTCInstant.today().plusHours(4).getInstant(), ZoneOffset.UTC);
+    try (var lockedClock = UTCInstant.setClock(fourOClock)) {
+      var service =
+          new FakeKeyService(SECRET, 10, 16, Duration.ofDays(21), BUCKET_LENGTH, TIME_SKEW, true);
+      var today = UTCInstant.today();
+      var now = UTCInstant.now();
+
+      assertEquals(0, service.fillUpKeys(new ArrayList<>(), null, today.minusDays(22), now).size());
+      assertEquals(0, service.fillUpKeys(new ArrayList<>(), null, today, now).size());
+      for (var keyDate = today.minusDays(21); keyDate.isBeforeDateOf(today); ) {
+        var keys = service.fillUpKeys(new ArrayList<>(), null, keyDate, now);
+        assertEquals(10, keys.size());
+        for (var key : keys) {
+          assertEquals(keyDate.get10MinutesSince1970(), (long) key.getRollingStartNumber());
+          assertEquals(16, key.getKeyBytes().length);
+        }
+        // the fake keys were received in the first bucket of today
+        assertEquals(10, service.fillUpKeys(new ArrayList<>(), today, keyDate, now).size());
+        assertEquals(
+            0, service.fillUpKeys(new ArrayList<>(), today.plusHours(2), keyDate, now).size());
+        keyDate = keyDate.plusDays(1);
+      }
+
+      // yesterday's keys are only released once they expired on all clients
+      var yesterday = today.minusDays(1);
+      assertEquals(
+          0, service.fillUpKeys(new ArrayList<>(), null, yesterday, today.plusHours(1)).size());
+
+      // keys are derived from the secret and the key date only
+      var keys = service.fillUpKeys(new ArrayList<>(), null, yesterday, now);
+      var otherInstance =
+          new FakeKeyService(SECRET, 10, 16, Duration.ofDays(21), BUCKET_LENGTH, TIME_SKEW, true);
+      var otherKeys = otherInstance.fillUpKeys(new ArrayList<>(), null, yesterday, now);
+      var otherSecret =
+          new FakeKeyService(null, 10, 16, Duration.ofDays(21), BUCKET_LENGTH, TIME_SKEW, true);
+      var otherSecretKeys = otherSecret.fillUpKeys(new ArrayList<>(), null, yesterday, now);
+      for (int i = 0; i < keys.size(); i++) {
+        assertArrayEquals(keys.get(i).getKeyBytes(), otherKeys.get(i).getKeyBytes());
+        assertFalse(Arrays.equals(keys.get(i).getKeyBytes(), otherSecretKeys.get(i).getKeyBytes()));
+      }
+      assertEquals(10, keys.stream().map(GaenKey::getKeyData).distinct().count());
+      assertFalse(
+          Arrays.equals(
+              keys.get(0).getKeyBytes(),
+              service.deriveFakeKeys(yesterday.minusDays(1)).get(0).getKeyBytes()));
+    }
+  }
+
+  @Test
+  public void testDisabledServiceDoesNotAddKeys() throws Exception {
+    var service =
+        new FakeKeyService(SECRET, 10, 16, Duration.ofDays(21), BUCKET_LENGTH, TIME_SKEW, false);
+    var now = UTCInstant.now();
+    assertEquals(
+        0,
+        service.fillUpKeys(new ArrayList<>(), null, now.minusDays(5).atStartOfDay(), now).size());
+  }
+}
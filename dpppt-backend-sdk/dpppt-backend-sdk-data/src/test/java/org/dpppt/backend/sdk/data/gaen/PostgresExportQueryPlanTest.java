@@ -0,0 +1,142 @@
+package org.dpppt.backend.sdk.data.gaen;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.time.Duration;
+import java.util.List;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.config.FlyWayConfig;
+import org.dpppt.backend.sdk.data.config.GaenDataServiceConfig;
+import org.dpppt.backend.sdk.data.config.PostgresDataConfig;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+
+/**
+ * Runs EXPLAIN on the export query against a synthetic dataset of the size of a busy retention
+ * period, and fails if the plan falls back to a sequential scan. The sort by pk_exposed_id isn't
+ * served by the index and spills to disk with the default work_mem, which is only reported.
+ *
+ * <p>Inserting the dataset takes a while, so the test only runs with `-Ddp3t.test.queryplan=true`.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(
+    loader = AnnotationConfigContextLoader.class,
+    classes = {PostgresDataConfig.class, FlyWayConfig.class, GaenDataServiceConfig.class})
+@ActiveProfiles("postgres")
+public class PostgresExportQueryPlanTest {
+
+  private static final Logger logger = LoggerFactory.getLogger(PostgresExportQueryPlanTest.class);
+
+  private static final int DAYS = 14;
+  private static final int KEYS = 3_000_000;
+  private static final Duration BATCH_LENGTH = Duration.ofHours(2);
+  private static final int BATCHES_PER_DAY = (int) Duration.ofDays(1).dividedBy(BATCH_LENGTH);
+
+  @Autowired private DataSource dataSource;
+
+  private NamedParameterJdbcTemplate jt;
+  private JDBCGAENDataServiceImpl gaenDataService;
+  private UTCInstant now;
+
+  @BeforeClass
+  public static void enabled() {
+    assumeTrue(Boolean.getBoolean("dp3t.test.queryplan"));
+  }
+
+  @Before
+  public void setUp() {
+    jt = new NamedParameterJdbcTemplate(dataSource);
+    gaenDataService =
+        new JDBCGAENDataServiceImpl("pgsql", dataSource, BATCH_LENGTH, Duration.ofHours(2));
+    now = UTCInstant.today().plusHours(5);
+    var params =
+        new MapSqlParameterSource()
+            .addValue("keys", KEYS)
+            .addValue("batches", DAYS * BATCHES_PER_DAY)
+            .addValue("days", DAYS)
+            .addValue("lastBatch", now.roundToBucketStart(BATCH_LENGTH).getDate());
+    // every key is uploaded in one of the batches of the last 14 days, with a key date of up to
+    // 14 days before its upload. received_at is the end of the batch, as for real uploads.
+    jt.update(
+        "insert into t_gaen_exposed (key, rolling_start_number, rolling_period,"
+            + " transmission_risk_level, received_at)"
+            + " select decode(md5(cast(i as text)), 'hex'),"
+            + " cast(extract(epoch from date_trunc('day', uploaded - (i / :batches % :days) *"
+            + " interval '1 day')) / 600 as integer), 144, 0, uploaded"
+            + " from (select i, cast(:lastBatch as timestamp with time zone) - (i % :batches) *"
+            + " interval '2 hours' - interval '1 millisecond' as uploaded"
+            + " from generate_series(1, :keys) i) s",
+        params);
+    jt.getJdbcTemplate().execute("vacuum analyze t_gaen_exposed");
+  }
+
+  @After
+  public void tearDown() {
+    jt.getJdbcTemplate().execute("truncate table t_gaen_exposed");
+  }
+
+  @Test
+  public void testExportQueriesUseIndex() {
+    var publishedUntil = now.roundToBucketStart(BATCH_LENGTH);
+    for (int day : new int[] {1, DAYS / 2, DAYS}) {
+      var keyDate = UTCInstant.today().minusDays(day);
+      // the first download of a key date, and the downloads of the oldest and the newest batch
+      assertNoSeqScan(keyDate, null, publishedUntil);
+      var oldestBatch = publishedUntil.minusDays(DAYS);
+      assertNoSeqScan(keyDate, oldestBatch, oldestBatch.plus(BATCH_LENGTH));
+      assertNoSeqScan(keyDate, publishedUntil.minus(BATCH_LENGTH), publishedUntil);
+    }
+  }
+
+  @Test
+  public void testReportSortOfLargestExport() {
+    // the first download of yesterday's keys returns the most keys
+    var params = new MapSqlParameterSource();
+    String sql =
+        gaenDataService.exposedForKeyDateQuery(
+            UTCInstant.today().minusDays(1),
+            null,
+            now.roundToBucketStart(BATCH_LENGTH),
+            now,
+            params);
+    List<String> plan = jt.queryForList("explain (analyze) " + sql, params, String.class);
+    for (String line : plan) {
+      if (line.contains("Sort Method")) {
+        logger.info("Largest export: {}", line.trim());
+      }
+    }
+  }
+
+  private void assertNoSeqScan(
+      UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil) {
+    var params = new MapSqlParameterSource();
+    String sql =
+        gaenDataService.exposedForKeyDateQuery(
+            keyDate, publishedAfter, publishedUntil, now, params);
+    List<String> plan = jt.queryForList("explain " + sql, params, String.class);
+    String description =
+        "keyDate "
+            + keyDate
+            + ", publishedAfter "
+            + publishedAfter
+            + ":\n"
+            + String.join("\n", plan);
+    for (String line : plan) {
+      assertFalse("sequential scan for " + description, line.contains("Seq Scan"));
+    }
+  }
+}
@@ -148,7 +148,7 @@ public class PostgresGaenDataServiceTest {
     var now = UTCInstant.now();
     var receivedAt = now.minusDays(21);
     Connection connection = dataSource.getConnection();
-    String key = "someKey";
+    String key = "c29tZUtleVNvbWVLZXkxMg==";
     insertExposeeWithReceivedAtAndKeyDate(
         receivedAt.getInstant(), receivedAt.minusDays(1).getInstant(), key);
 
@@ -194,7 +194,7 @@ public class PostgresGaenDataServiceTest {
   public void testBatchReleaseTime() throws SQLException {
     var receivedAt = UTCInstant.parseDateTime("2014-01-28T00:00:00");
     var now = UTCInstant.now();
-    String key = "key555";
+    String key = "a2V5NTU1a2V5NTU1a2V5NQ==";
     insertExposeeWithReceivedAtAndKeyDate(
         receivedAt.getInstant(), receivedAt.minus(Duration.ofDays(2)).getInstant(), key);
 
@@ -220,7 +220,7 @@ public class PostgresGaenDataServiceTest {
         "into t_gaen_exposed (pk_exposed_id, key, received_at, rolling_start_number,"
             + " rolling_period, transmission_risk_level) values (100, ?, ?, ?, 144, 0)";
     PreparedStatement preparedStatement = connection.prepareStatement("insert " + sql);
-    preparedStatement.setString(1, key);
+    preparedStatement.setBytes(1, Base64.getDecoder().decode(key));
     preparedStatement.setTimestamp(2, new Timestamp(receivedAt.toEpochMilli()));
     preparedStatement.setInt(
         3, (int) Duration.ofMillis(receivedAt.toEpochMilli()).dividedBy(Duration.ofMinutes(10)));
@@ -234,7 +234,7 @@ public class PostgresGaenDataServiceTest {
         "into t_gaen_exposed (pk_exposed_id, key, received_at, rolling_start_number,"
             + " rolling_period, transmission_risk_level) values (100, ?, ?, ?, 144, 0)";
     PreparedStatement preparedStatement = connection.prepareStatement("insert " + sql);
-    preparedStatement.setString(1, key);
+    preparedStatement.setBytes(1, Base64.getDecoder().decode(key));
     preparedStatement.setTimestamp(2, new Timestamp(receivedAt.toEpochMilli()));
     preparedStatement.setInt(
         3, (int) GaenUnit.TenMinutes.between(Instant.ofEpochMilli(0), keyDate));
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data.gaen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.config.FlyWayConfig;
+import org.dpppt.backend.sdk.data.config.GaenDataServiceConfig;
+import org.dpppt.backend.sdk.data.config.PostgresDataConfig;
+import org.dpppt.backend.sdk.data.util.SingletonPostgresContainer;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.flywaydb.core.Flyway;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Migrates a separate schema of the test database with `db/migration/pgsql`, and then turns on
+ * partitioning, as an existing installation would.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(
+    loader = AnnotationConfigContextLoader.class,
+    classes = {PostgresDataConfig.class, FlyWayConfig.class, GaenDataServiceConfig.class})
+@ActiveProfiles("postgres")
+public class PostgresPartitionedGaenDataServiceTest {
+
+  private static final String SCHEMA = "gaen_partitioned";
+  private static final Duration BATCH_LENGTH = Duration.ofHours(2);
+  private static final DateTimeFormatter PARTITION_DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+  // only used to make sure the container is running
+  @Autowired private DataSource dataSource;
+
+  private DataSource schemaDataSource;
+  private JdbcTemplate jt;
+  private JDBCGAENDataServiceImpl gaenDataService;
+
+  @Before
+  public void setUp() {
+    var container = SingletonPostgresContainer.getInstance();
+    var url = container.getJdbcUrl();
+    schemaDataSource =
+        DataSourceBuilder.create()
+            .driverClassName(container.getDriverClassName())
+            .url(url + (url.contains("?") ? "&" : "?") + "currentSchema=" + SCHEMA)
+            .username(container.getUsername())
+            .password(container.getPassword())
+            .build();
+    jt = new JdbcTemplate(schemaDataSource);
+    jt.execute("drop schema if exists " + SCHEMA + " cascade");
+
+    migrate("classpath:/db/migration/pgsql");
+    new JDBCGAENDataServiceImpl("pgsql", schemaDataSource, BATCH_LENGTH, Duration.ofHours(2))
+        .upsertExposees(List.of(createKey(0)), UTCInstant.now().minusDays(1));
+
+    migrate("classpath:/db/migration/pgsql", "classpath:/db/migration/pgsql_partitioned");
+    gaenDataService =
+        new JDBCGAENDataServiceImpl(
+            "pgsql", schemaDataSource, BATCH_LENGTH, Duration.ofHours(2), true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    jt.execute("drop schema if exists " + SCHEMA + " cascade");
+    if (schemaDataSource instanceof AutoCloseable) {
+      ((AutoCloseable) schemaDataSource).close();
+    }
+  }
+
+  private void migrate(String... locations) {
+    Flyway.configure()
+        .dataSource(schemaDataSource)
+        .schemas(SCHEMA)
+        .locations(locations)
+        .load()
+        .migrate();
+  }
+
+  private static GaenKey createKey(int i) {
+    var key = new GaenKey();
+    var keyBytes = new byte[16];
+    keyBytes[15] = (byte) i;
+    keyBytes[0] = 1;
+    key.setKeyBytes(keyBytes);
+    key.setRollingStartNumber((int) UTCInstant.today().minusDays(1).get10MinutesSince1970());
+    key.setRollingPeriod(144);
+    key.setTransmissionRiskLevel(0);
+    return key;
+  }
+
+  private int countKeys(String table) {
+    return jt.queryForObject("select count(*) from " + table, Integer.class);
+  }
+
+  private String partition(UTCInstant day) {
+    return "t_gaen_exposed_" + day.getLocalDate().format(PARTITION_DAY);
+  }
+
+  private boolean partitionExists(UTCInstant day) {
+    return jt.queryForObject(
+            "select to_regclass(?) is not null", Boolean.class, SCHEMA + "." + partition(day));
+  }
+
+  @Test
+  public void testMigrationKeepsKeys() {
+    assertTrue(
+        jt.queryForObject(
+            "select exists (select 1 from pg_partitioned_table p join pg_class c on p.partrelid ="
+                + " c.oid join pg_namespace n on c.relnamespace = n.oid where c.relname ="
+                + " 't_gaen_exposed' and n.nspname = ?)",
+            Boolean.class,
+            SCHEMA));
+    assertEquals(1, countKeys("t_gaen_exposed"));
+    assertEquals(0, countKeys("t_gaen_exposed_default"));
+    assertTrue(partitionExists(UTCInstant.today().plusDays(7)));
+  }
+
+  @Test
+  public void testKeyIsOnlyStoredOnce() {
+    var now = UTCInstant.now();
+    gaenDataService.upsertExposees(List.of(createKey(1)), now);
+    gaenDataService.upsertExposeesDelayed(List.of(createKey(1)), now.plusDays(1), now);
+    gaenDataService.upsertExposees(List.of(createKey(1)), now.plusDays(2));
+    assertEquals(2, countKeys("t_gaen_exposed"));
+  }
+
+  @Test
+  public void testConcurrentUploadsStoreKeyOnce() throws Exception {
+    var now = UTCInstant.now();
+    var transactions =
+        new TransactionTemplate(new DataSourceTransactionManager(schemaDataSource));
+    var firstInserted = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    var first =
+        executor.submit(
+            () ->
+                transactions.executeWithoutResult(
+                    status -> {
+                      gaenDataService.upsertExposees(List.of(createKey(2)), now);
+                      firstInserted.countDown();
+                      // the second upload runs while this one isn't committed yet
+                      try {
+                        Thread.sleep(1000);
+                      } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                      }
+                    }));
+    assertTrue(firstInserted.await(10, TimeUnit.SECONDS));
+    gaenDataService.upsertExposeesDelayed(List.of(createKey(2)), now.plusDays(1), now);
+    first.get(10, TimeUnit.SECONDS);
+    executor.shutdown();
+
+    assertEquals(2, countKeys("t_gaen_exposed"));
+  }
+
+  @Test
+  public void testRowsOfDefaultPartitionAreMoved() {
+    var now = UTCInstant.now();
+    var later = UTCInstant.today().plusDays(30).plusHours(3);
+    gaenDataService.upsertExposeesDelayed(List.of(createKey(3)), later, now);
+    assertEquals(1, countKeys("t_gaen_exposed_default"));
+
+    jt.execute("select gaen_exposed_create_partitions(now(), now() + interval '31 days')");
+    assertTrue(partitionExists(later));
+    assertEquals(0, countKeys("t_gaen_exposed_default"));
+    assertEquals(1, countKeys(partition(later)));
+  }
+
+  @Test
+  public void testExpiredPartitionsAreDropped() {
+    var now = UTCInstant.now();
+    var expired = UTCInstant.today().minusDays(20).plusHours(3);
+    jt.execute("select gaen_exposed_create_partitions(now() - interval '20 days', now())");
+    gaenDataService.upsertExposeesDelayed(List.of(createKey(4)), expired, now);
+    assertEquals(1, countKeys(partition(expired)));
+
+    gaenDataService.cleanDB(Duration.ofDays(14));
+    assertFalse(partitionExists(expired));
+    assertTrue(partitionExists(UTCInstant.today()));
+    assertTrue(partitionExists(UTCInstant.today().plusDays(7)));
+    assertNull(
+        jt.queryForObject(
+            "select min(received_at) from t_gaen_exposed where received_at < now() - interval"
+                + " '14 days'",
+            Object.class));
+  }
+}
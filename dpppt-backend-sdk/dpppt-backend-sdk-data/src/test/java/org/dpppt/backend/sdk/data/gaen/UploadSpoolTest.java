@@ -0,0 +1,253 @@
+package org.dpppt.backend.sdk.data.gaen;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.dpppt.backend.sdk.data.gaen.SpooledGAENDataService.ReplayResult;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.transaction.support.TransactionOperations;
+
+public class UploadSpoolTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+  // header, time and key count, and 10 keys of 16 bytes
+  private static final int RECORD_SIZE = 8 + 12 + 10 * (2 + 16 + 12);
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static List<GaenKey> createKeys(int first, int count) {
+    var keys = new ArrayList<GaenKey>();
+    for (int i = first; i < first + count; i++) {
+      var keyData = ByteBuffer.allocate(16).putLong(8, i).array();
+      keys.add(new GaenKey(Base64.getEncoder().encodeToString(keyData), 2650000 + i, 144, i % 8));
+    }
+    return keys;
+  }
+
+  private static void assertSameKeys(List<GaenKey> expected, List<GaenKey> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getKeyData(), actual.get(i).getKeyData());
+      assertEquals(expected.get(i).getRollingStartNumber(), actual.get(i).getRollingStartNumber());
+      assertEquals(expected.get(i).getRollingPeriod(), actual.get(i).getRollingPeriod());
+      assertEquals(
+          expected.get(i).getTransmissionRiskLevel(), actual.get(i).getTransmissionRiskLevel());
+    }
+  }
+
+  private List<Path> segments(Path directory) throws IOException {
+    try (var files = Files.list(directory)) {
+      return files.sorted().collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  public void testUploadsAreReadInOrderAndSegmentsDeleted() throws Exception {
+    var directory = folder.getRoot().toPath();
+    var spool = new UploadSpool(directory, 4096);
+    var now = UTCInstant.now();
+    for (int i = 0; i < 20; i++) {
+      spool.append(createKeys(i * 10, 10), now.plusSeconds(i));
+    }
+    assertTrue(segments(directory).size() > 1);
+
+    for (int i = 0; i < 20; i++) {
+      var upload = spool.peek();
+      assertSameKeys(createKeys(i * 10, 10), upload.getKeys());
+      assertEquals(now.plusSeconds(i).getTimestamp(), upload.getNow().getTimestamp());
+      spool.commit(upload);
+    }
+    assertNull(spool.peek());
+    assertTrue(spool.isEmpty());
+    assertEquals(1, segments(directory).size());
+
+    assertThrows(IOException.class, () -> spool.append(createKeys(0, 1000), now));
+  }
+
+  @Test
+  public void testUncommittedUploadsAreRecovered() throws Exception {
+    var directory = folder.getRoot().toPath();
+    var spool = new UploadSpool(directory, 4096);
+    var now = UTCInstant.now();
+    for (int i = 0; i < 3; i++) {
+      spool.append(createKeys(i * 10, 10), now);
+    }
+    spool.commit(spool.peek());
+    spool.close();
+
+    // simulate a crash while writing the last record
+    try (var file = new RandomAccessFile(segments(directory).get(0).toFile(), "rw")) {
+      file.seek(2L * RECORD_SIZE + 8);
+      file.write(0xff);
+    }
+
+    var afterCrash = new UploadSpool(directory, 4096);
+    // committed uploads of the current segment are replayed again
+    assertSameKeys(createKeys(0, 10), afterCrash.peek().getKeys());
+    afterCrash.commit(afterCrash.peek());
+    assertSameKeys(createKeys(10, 10), afterCrash.peek().getKeys());
+    afterCrash.commit(afterCrash.peek());
+    assertNull(afterCrash.peek());
+
+    // the torn record is overwritten
+    afterCrash.append(createKeys(100, 1), now);
+    assertSameKeys(createKeys(100, 1), afterCrash.peek().getKeys());
+  }
+
+  @Test
+  public void testReplayRetriesUntilDatabaseIsAvailable() throws Exception {
+    var database = new DatabaseStub();
+    database.failure = new CannotGetJdbcConnectionException("database unavailable");
+    var spool = new UploadSpool(folder.getRoot().toPath(), 4096);
+    var service = createService(database, spool);
+    try {
+      var now = UTCInstant.now();
+      var previousBucket = now.minus(BUCKET_LENGTH);
+      service.upsertExposees(createKeys(0, 2), previousBucket);
+      service.upsertExposees(createKeys(2, 2), now);
+      // the background thread fails once and then waits for an hour
+      for (int i = 0; i < 500 && database.attempts.get() == 0; i++) {
+        Thread.sleep(10);
+      }
+      assertFalse(spool.isEmpty());
+      for (int i = 0; i < 10; i++) {
+        assertEquals(ReplayResult.FAILED, service.replayNext());
+      }
+
+      database.failure = null;
+      assertEquals(ReplayResult.REPLAYED, service.replayNext());
+      assertEquals(ReplayResult.REPLAYED, service.replayNext());
+      assertEquals(ReplayResult.EMPTY, service.replayNext());
+      assertSameKeys(createKeys(0, 4), database.written);
+      // the bucket of the first upload has ended, so it is inserted into the current one
+      assertFalse(database.uploadTimes.get(0).getTimestamp() < now.getTimestamp());
+      assertEquals(now.getTimestamp(), database.uploadTimes.get(1).getTimestamp());
+      assertEquals(0, service.getDroppedKeys());
+    } finally {
+      service.shutdown();
+    }
+  }
+
+  @Test
+  public void testRejectedKeyDoesNotBlockReplay() throws Exception {
+    var database = new DatabaseStub();
+    var poison = createKeys(1, 1).get(0).getKeyData();
+    database.failure = new DataIntegrityViolationException("rejected");
+    database.failsFor = key -> key.getKeyData().equals(poison);
+    var spool = new UploadSpool(folder.getRoot().toPath(), 4096);
+    var service = createService(database, spool);
+    try {
+      service.upsertExposees(createKeys(0, 3), UTCInstant.now());
+      service.upsertExposees(createKeys(3, 2), UTCInstant.now());
+      for (int i = 0; i < 500 && !spool.isEmpty(); i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(spool.isEmpty());
+      assertEquals(1, service.getDroppedKeys());
+      var expected = createKeys(0, 5);
+      expected.remove(1);
+      assertSameKeys(expected, database.written);
+    } finally {
+      service.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentAppendsAreAllSpooled() throws Exception {
+    var spool = new UploadSpool(folder.getRoot().toPath(), 4096);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    var now = UTCInstant.now();
+    var uploads = new ArrayList<Future<?>>();
+    for (int i = 0; i < 100; i++) {
+      var keys = createKeys(i * 10, 10);
+      uploads.add(
+          executor.submit(
+              () -> {
+                spool.append(keys, now);
+                return null;
+              }));
+    }
+    for (var upload : uploads) {
+      upload.get(10, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+    spool.close();
+
+    var reopened = new UploadSpool(folder.getRoot().toPath(), 4096);
+    int count = 0;
+    for (var upload = reopened.peek(); upload != null; upload = reopened.peek()) {
+      assertEquals(10, upload.getKeys().size());
+      reopened.commit(upload);
+      count++;
+    }
+    assertEquals(100, count);
+  }
+
+  private static SpooledGAENDataService createService(GAENDataService database, UploadSpool spool) {
+    return new SpooledGAENDataService(
+        database,
+        spool,
+        TransactionOperations.withoutTransaction(),
+        BUCKET_LENGTH,
+        Duration.ofHours(1));
+  }
+
+  /** Fails the writes which contain a key matching `failsFor` with `failure`, if it is set. */
+  private static class DatabaseStub implements GAENDataService {
+    final List<GaenKey> written = Collections.synchronizedList(new ArrayList<>());
+    final List<UTCInstant> uploadTimes = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger attempts = new AtomicInteger();
+    volatile RuntimeException failure;
+    volatile Predicate<GaenKey> failsFor = key -> true;
+
+    @Override
+    public void upsertExposees(List<GaenKey> keys, UTCInstant now) {
+      attempts.incrementAndGet();
+      var e = failure;
+      if (e != null && keys.stream().anyMatch(failsFor)) {
+        throw e;
+      }
+      written.addAll(keys);
+      uploadTimes.add(now);
+    }
+
+    @Override
+    public void upsertExposeesDelayed(
+        List<GaenKey> keys, UTCInstant delayedReceivedAt, UTCInstant now) {}
+
+    @Override
+    public List<GaenKey> getSortedExposedForKeyDate(
+        UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now) {
+      return List.of();
+    }
+
+    @Override
+    public void cleanDB(Duration retentionPeriod) {}
+  }
+}
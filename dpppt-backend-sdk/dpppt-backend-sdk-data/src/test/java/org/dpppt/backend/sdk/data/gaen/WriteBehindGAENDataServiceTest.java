@@ -0,0 +1,230 @@
+package org.dpppt.backend.sdk.data.gaen;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.transaction.support.TransactionOperations;
+
+public class WriteBehindGAENDataServiceTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+
+  private static class RecordingDataService implements GAENDataService {
+    final List<List<GaenKey>> batches = Collections.synchronizedList(new ArrayList<>());
+    final List<UTCInstant> batchTimes = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void upsertExposees(List<GaenKey> keys, UTCInstant now) {
+      batches.add(new ArrayList<>(keys));
+      batchTimes.add(now);
+    }
+
+    @Override
+    public void upsertExposeesDelayed(
+        List<GaenKey> keys, UTCInstant delayedReceivedAt, UTCInstant now) {}
+
+    @Override
+    public List<GaenKey> getSortedExposedForKeyDate(
+        UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now) {
+      return List.of();
+    }
+
+    @Override
+    public void cleanDB(Duration retentionPeriod) {}
+
+    int keyCount() {
+      synchronized (batches) {
+        return batches.stream().mapToInt(List::size).sum();
+      }
+    }
+  }
+
+  private static class FailingDataService extends RecordingDataService {
+    volatile RuntimeException failure;
+
+    @Override
+    public void upsertExposees(List<GaenKey> keys, UTCInstant now) {
+      var e = failure;
+      if (e != null) {
+        throw e;
+      }
+      super.upsertExposees(keys, now);
+    }
+  }
+
+  /** Fails every write which contains the second key of {@link #createKeys(int)}. */
+  private static class PoisonKeyDataService extends RecordingDataService {
+    final RuntimeException failure;
+
+    PoisonKeyDataService(RuntimeException failure) {
+      this.failure = failure;
+    }
+
+    @Override
+    public void upsertExposees(List<GaenKey> keys, UTCInstant now) {
+      if (keys.stream().anyMatch(key -> key.getKeyData().equals("key1"))) {
+        throw failure;
+      }
+      super.upsertExposees(keys, now);
+    }
+  }
+
+  private static List<GaenKey> createKeys(int count) {
+    var keys = new ArrayList<GaenKey>();
+    for (int i = 0; i < count; i++) {
+      keys.add(new GaenKey("key" + i, 0, 144, 0));
+    }
+    return keys;
+  }
+
+  private static WriteBehindGAENDataService createService(
+      GAENDataService delegate, int capacity, int batchSize, Duration interval) {
+    return new WriteBehindGAENDataService(
+        delegate,
+        TransactionOperations.withoutTransaction(),
+        BUCKET_LENGTH,
+        capacity,
+        batchSize,
+        interval);
+  }
+
+  @Test
+  public void testUploadsAreCombined() throws Exception {
+    var delegate = new RecordingDataService();
+    var service = createService(delegate, 100_000, 5000, Duration.ofSeconds(30));
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    var now = UTCInstant.today().plusHours(1);
+    for (int i = 0; i < 1000; i++) {
+      executor.execute(() -> service.upsertExposees(createKeys(3), now));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    service.shutdown();
+    assertEquals(0, service.getQueuedKeys());
+    assertEquals(3000, delegate.keyCount());
+    // far fewer writes than uploads
+    assertTrue(delegate.batches.size() <= 2, "writes: " + delegate.batches.size());
+  }
+
+  @Test
+  public void testBucketsAreWrittenSeparately() throws Exception {
+    var delegate = new RecordingDataService();
+    var service = createService(delegate, 1000, 1000, Duration.ofSeconds(30));
+    var firstBucket =
+        UTCInstant.now().roundToBucketStart(BUCKET_LENGTH).plus(Duration.ofSeconds(1));
+    var secondBucket = firstBucket.plus(BUCKET_LENGTH);
+    service.upsertExposees(createKeys(2), firstBucket);
+    service.upsertExposees(createKeys(3), secondBucket);
+    service.upsertExposees(createKeys(4), firstBucket.plusMinutes(20));
+
+    service.shutdown();
+    assertEquals(2, delegate.batches.size());
+    assertEquals(6, delegate.batches.get(0).size());
+    assertEquals(firstBucket.getTimestamp(), delegate.batchTimes.get(0).getTimestamp());
+    assertEquals(3, delegate.batches.get(1).size());
+    assertEquals(secondBucket.getTimestamp(), delegate.batchTimes.get(1).getTimestamp());
+  }
+
+  @Test
+  public void testEndedBucketIsWrittenAsCurrentUpload() throws Exception {
+    var delegate = new RecordingDataService();
+    var service = createService(delegate, 1000, 1000, Duration.ofSeconds(30));
+    var endedBucket = UTCInstant.now().minus(BUCKET_LENGTH);
+    service.upsertExposees(createKeys(2), endedBucket);
+
+    var beforeFlush = UTCInstant.now();
+    service.shutdown();
+    assertEquals(1, delegate.batches.size());
+    assertFalse(delegate.batchTimes.get(0).isBeforeEpochMillisOf(beforeFlush));
+  }
+
+  @Test
+  public void testFullQueueWritesSynchronously() throws Exception {
+    var delegate = new RecordingDataService();
+    var service = createService(delegate, 5, 100, Duration.ofSeconds(30));
+    var now = UTCInstant.now();
+    service.upsertExposees(createKeys(4), now);
+    assertEquals(0, delegate.batches.size());
+    service.upsertExposees(createKeys(4), now);
+    assertEquals(1, delegate.batches.size());
+    assertEquals(4, service.getQueuedKeys());
+
+    service.shutdown();
+    assertEquals(8, delegate.keyCount());
+  }
+
+  @Test
+  public void testQueueIsFlushedPeriodically() throws Exception {
+    var delegate = new RecordingDataService();
+    var service = createService(delegate, 1000, 1000, Duration.ofMillis(50));
+    service.upsertExposees(createKeys(5), UTCInstant.now());
+    for (int i = 0; i < 100 && delegate.keyCount() < 5; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(5, delegate.keyCount());
+    service.shutdown();
+  }
+
+  @Test
+  public void testKeysAreKeptWhileDatabaseIsDown() throws Exception {
+    var delegate = new FailingDataService();
+    delegate.failure = new CannotGetJdbcConnectionException("database down");
+    var service = createService(delegate, 1000, 2, Duration.ofSeconds(30));
+    service.upsertExposees(createKeys(5), UTCInstant.now());
+
+    assertFalse(service.flush());
+    assertEquals(5, service.getQueuedKeys());
+    assertEquals(0, delegate.keyCount());
+
+    delegate.failure = null;
+    assertTrue(service.flush());
+    assertEquals(0, service.getQueuedKeys());
+    assertEquals(5, delegate.keyCount());
+    service.shutdown();
+  }
+
+  @Test
+  public void testRejectedKeyIsDropped() throws Exception {
+    var delegate = new PoisonKeyDataService(new DataIntegrityViolationException("rejected"));
+    var service = createService(delegate, 1000, 1000, Duration.ofSeconds(30));
+    service.upsertExposees(createKeys(3), UTCInstant.now());
+
+    assertFalse(service.flush());
+    assertEquals(0, service.getQueuedKeys());
+    assertEquals(1, service.getDroppedKeys());
+    assertEquals(2, delegate.keyCount());
+    service.shutdown();
+  }
+
+  @Test
+  public void testKeyFailingTransientlyIsDroppedAfterRetries() throws Exception {
+    var delegate = new PoisonKeyDataService(new QueryTimeoutException("timeout"));
+    var service = createService(delegate, 1000, 1000, Duration.ofSeconds(30));
+    service.upsertExposees(createKeys(3), UTCInstant.now());
+
+    assertFalse(service.flush());
+    assertEquals(1, service.getQueuedKeys());
+    assertEquals(2, delegate.keyCount());
+    for (int i = 0; i < 10 && service.getQueuedKeys() > 0; i++) {
+      service.flush();
+    }
+    assertEquals(0, service.getQueuedKeys());
+    assertEquals(1, service.getDroppedKeys());
+    service.shutdown();
+  }
+}
@@ -1,12 +1,18 @@
 package org.dpppt.backend.sdk.model.gaen;
 
 import ch.ubique.openapi.docannotations.Documentation;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.util.Base64;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
 /**
  * A GaenKey is a Temporary Exposure Key of a person being infected, so it's also an Exposed Key. To
  * protect timing attacks, a key can be invalidated by the client by setting _fake_ to 1.
+ *
+ * <p>The key data is decoded once when it is set, and only the binary form is used for validation,
+ * storage and export. Keys read from the database only hold the binary form, the base64
+ * representation is created when it is requested.
  */
 public class GaenKey {
   public static final Integer GaenKeyDefaultRollingPeriod = 144;
@@ -16,6 +22,8 @@ public class GaenKey {
   @Documentation(description = "Represents the 16-byte Temporary Exposure Key in base64")
   private String keyData;
 
+  private byte[] keyBytes;
+
   @NotNull
   @Documentation(
       description =
@@ -47,18 +55,49 @@ public class GaenKey {
       Integer rollingStartNumber,
       Integer rollingPeriod,
       Integer transmissionRiskLevel) {
-    this.keyData = keyData;
+    setKeyData(keyData);
     this.rollingStartNumber = rollingStartNumber;
     this.rollingPeriod = rollingPeriod;
     this.transmissionRiskLevel = transmissionRiskLevel;
   }
 
   public String getKeyData() {
+    if (this.keyData == null && this.keyBytes != null) {
+      this.keyData = Base64.getEncoder().encodeToString(this.keyBytes);
+    }
     return this.keyData;
   }
 
   public void setKeyData(String keyData) {
     this.keyData = keyData;
+    this.keyBytes = decode(keyData);
+  }
+
+  /**
+   * @return the decoded key data, or null if the key data isn't valid base64. The array must not be
+   *     modified.
+   */
+  @JsonIgnore
+  public byte[] getKeyBytes() {
+    return this.keyBytes;
+  }
+
+  /** Sets the binary key data. The base64 representation is only created if it is requested. */
+  @JsonIgnore
+  public void setKeyBytes(byte[] keyBytes) {
+    this.keyData = null;
+    this.keyBytes = keyBytes;
+  }
+
+  private static byte[] decode(String keyData) {
+    if (keyData == null) {
+      return null;
+    }
+    try {
+      return Base64.getDecoder().decode(keyData);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
   }
 
   public Integer getRollingStartNumber() {
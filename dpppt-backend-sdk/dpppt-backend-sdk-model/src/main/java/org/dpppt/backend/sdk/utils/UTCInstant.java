@@ -293,12 +293,24 @@ public class UTCInstant implements Closeable {
    */
   public void normalizeDuration(Duration totalDuration)
       throws InterruptedException, DurationExpiredException {
+    Thread.sleep(remainingDuration(totalDuration).toMillis());
+  }
+
+  /**
+   * Returns how much time is left until `totalDuration` has passed since this instant. Callers that
+   * must not block a thread use this to delay their response instead of {@link
+   * #normalizeDuration(Duration)}.
+   *
+   * @param totalDuration how long the total duration should be
+   * @return the time left, never negative
+   * @throws DurationExpiredException if the duration already passed
+   */
+  public Duration remainingDuration(Duration totalDuration) throws DurationExpiredException {
     Duration timeFillUp = totalDuration.minus(UTCInstant.now().getDuration(this));
     if (timeFillUp.isNegative()) {
       throw new DurationExpiredException("Duration of call was longer than requestDuration");
-    } else {
-      Thread.sleep(timeFillUp.toMillis());
     }
+    return timeFillUp;
   }
 
   @Override
@@ -23,6 +23,17 @@ class UTCInstantTest {
     assertThrows(DurationExpiredException.class, () -> now.normalizeDuration(minimumDuration));
   }
 
+  @Test
+  void remainingDuration() throws Exception {
+    UTCInstant start = UTCInstant.now().minus(Duration.ofMillis(400));
+    Duration remaining = start.remainingDuration(Duration.ofSeconds(1));
+    assertTrue(remaining.compareTo(Duration.ofMillis(600)) <= 0);
+    assertFalse(remaining.isNegative());
+
+    assertThrows(
+        DurationExpiredException.class, () -> start.remainingDuration(Duration.ofMillis(100)));
+  }
+
   // Test corner-cases of roundToBucket
   @Test
   void roundToBucket() {
@@ -17,19 +17,36 @@ import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.hubspot.jackson.datatype.protobuf.ProtobufModule;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.time.Duration;
 import java.time.ZoneOffset;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.CachingRedeemDataService;
+import org.dpppt.backend.sdk.data.ClusterJobRunner;
 import org.dpppt.backend.sdk.data.JDBCRedeemDataServiceImpl;
 import org.dpppt.backend.sdk.data.RedeemDataService;
+import org.dpppt.backend.sdk.data.RetentionCleaner;
 import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
 import org.dpppt.backend.sdk.data.gaen.GAENDataService;
 import org.dpppt.backend.sdk.data.gaen.JDBCGAENDataServiceImpl;
+import org.dpppt.backend.sdk.data.gaen.SpooledGAENDataService;
+import org.dpppt.backend.sdk.data.gaen.UploadSpool;
+import org.dpppt.backend.sdk.data.gaen.WriteBehindGAENDataService;
+import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.controller.GaenController;
+import org.dpppt.backend.sdk.ws.export.ExportBuilder;
+import org.dpppt.backend.sdk.ws.export.ExportCache;
+import org.dpppt.backend.sdk.ws.export.ExportPreGenerator;
 import org.dpppt.backend.sdk.ws.filter.ResponseWrapperFilter;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat;
@@ -45,11 +62,15 @@ import org.dpppt.backend.sdk.ws.interceptor.HeaderInjector;
 import org.dpppt.backend.sdk.ws.security.KeyVault;
 import org.dpppt.backend.sdk.ws.security.NoValidateRequest;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest;
+import org.dpppt.backend.sdk.ws.security.signature.KeyFragmentCache;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.security.signature.SigningEngine;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.flywaydb.core.Flyway;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
@@ -59,15 +80,16 @@ import org.springframework.context.annotation.Lazy;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.http.converter.protobuf.ProtobufHttpMessageConverter;
-import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
-import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.SchedulingConfigurer;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.scheduling.config.CronTask;
 import org.springframework.scheduling.config.IntervalTask;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -78,6 +100,10 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
 
   protected final Logger logger = LoggerFactory.getLogger(getClass());
 
+  // number of independently locked parts of the redeemed uuid cache
+  private static final int REDEEM_CACHE_STRIPES = 16;
+  private static final Duration REDEEM_RETENTION = Duration.ofDays(2);
+
   public abstract DataSource dataSource();
 
   public abstract Flyway flyway();
@@ -104,6 +130,9 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
   @Value("${ws.gaen.randomkeyamount: 10}")
   int randomkeyamount;
 
+  @Value("${ws.gaen.randomkeysecret:}")
+  String randomkeysecret;
+
   @Value("${ws.retentiondays: 14}")
   int retentionDays;
 
@@ -113,6 +142,79 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
   @Value("${ws.exposedlist.requestTime: 1500}")
   long requestTime;
 
+  @Value("${ws.exposedlist.requestTime.threads: 1}")
+  int requestTimeThreads;
+
+  @Value("${ws.exposedlist.cache.maxbytes: 0}")
+  long exportCacheMaxBytes;
+
+  @Value("${ws.exposedlist.etag.maxentries: 10000}")
+  int exportEtagMaxEntries;
+
+  @Value("${ws.exposedlist.keyfragments.maxentries: 500000}")
+  int keyFragmentMaxEntries;
+
+  @Value("${ws.exposedlist.pregenerate.enabled: false}")
+  boolean exportPreGenerationEnabled;
+
+  @Value("${ws.exposedlist.pregenerate.threads: 4}")
+  int exportThreads;
+
+  @Value("${ws.scheduler.threads: 4}")
+  int schedulerThreads;
+
+  @Value("${ws.exposedlist.bundle.threads: 2}")
+  int bundleThreads;
+
+  @Value("${ws.exposedlist.bundle.queuecapacity: 64}")
+  int bundleQueueCapacity;
+
+  @Value("${ws.exposedlist.batch.maxkeys: 0}")
+  int maxKeysPerBatch;
+
+  // requires pgsql, see the migrations in db/migration/pgsql_partitioned
+  @Value("${ws.exposedlist.partitioned: false}")
+  boolean exposedPartitioned;
+
+  @Value("${ws.exposedlist.writebehind.capacity: 0}")
+  int writeBehindCapacity;
+
+  @Value("${ws.exposedlist.writebehind.batchsize: 5000}")
+  int writeBehindBatchSize;
+
+  @Value("${ws.exposedlist.writebehind.interval: 500}")
+  long writeBehindInterval;
+
+  @Value("${ws.exposedlist.spool.directory:}")
+  String spoolDirectory;
+
+  @Value("${ws.exposedlist.spool.segmentsize: 16777216}")
+  int spoolSegmentSize;
+
+  @Value("${ws.exposedlist.spool.retryinterval: 5000}")
+  long spoolRetryInterval;
+
+  @Value("${ws.cleanup.chunksize: 10000}")
+  int cleanupChunkSize;
+
+  @Value("${ws.cleanup.pauseratio: 1.0}")
+  double cleanupPauseRatio;
+
+  @Value("${ws.cleanup.maxpause: 5000}")
+  long cleanupMaxPause;
+
+  @Value("${ws.redeem.cache.size: 100000}")
+  int redeemCacheSize;
+
+  @Value("${ws.cluster.node:}")
+  String clusterNode;
+
+  @Value("${ws.exposedlist.signing.threads: 4}")
+  int signingThreads;
+
+  @Value("${ws.signing.provider:}")
+  String signingProvider;
+
   @Value("${ws.app.source}")
   String appSource;
 
@@ -151,6 +253,8 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
 
   @Autowired @Lazy KeyVault keyVault;
 
+  @Autowired ObjectProvider<MeterRegistry> meterRegistry;
+
   final SignatureAlgorithm algorithm = SignatureAlgorithm.ES256;
 
   public String getBundleId() {
@@ -172,25 +276,13 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
   @Bean
   public FakeKeyService fakeKeyService() {
     try {
-      DataSource fakeDataSource =
-          new EmbeddedDatabaseBuilder()
-              .generateUniqueName(true)
-              .setType(EmbeddedDatabaseType.HSQL)
-              .build();
-      Flyway flyWay =
-          Flyway.configure()
-              .dataSource(fakeDataSource)
-              .locations("classpath:/db/migration/hsqldb")
-              .load();
-      flyWay.migrate();
-      GAENDataService fakeGaenService =
-          new JDBCGAENDataServiceImpl(
-              "hsql", fakeDataSource, Duration.ofMillis(releaseBucketDuration), timeSkew);
       return new FakeKeyService(
-          fakeGaenService,
+          Base64.getDecoder().decode(randomkeysecret),
           Integer.valueOf(randomkeyamount),
           Integer.valueOf(gaenKeySizeBytes),
           Duration.ofDays(retentionDays),
+          Duration.ofMillis(releaseBucketDuration),
+          timeSkew,
           randomkeysenabled);
     } catch (Exception ex) {
       throw new RuntimeException("FakeKeyService could not be instantiated", ex);
@@ -208,7 +300,14 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
           getKeyVersion(),
           getKeyIdentifier(),
           gaenRegion,
-          Duration.ofMillis(releaseBucketDuration));
+          Duration.ofMillis(releaseBucketDuration),
+          keyFragmentCache(),
+          maxKeysPerBatch,
+          signingTaskExecutor(),
+          createSigningEngine(
+              "gaen",
+              ProtoSignature.oidToJavaSignature.get(gaenAlgorithm.trim()),
+              keyVault.get("gaen").getPrivate()));
     } catch (Exception ex) {
       throw new RuntimeException("Cannot initialize signer for protobuf");
     }
@@ -284,15 +383,77 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
     return new GaenController(
         insertManagerExposed(),
         insertManagerExposedNextDay(),
-        gaenDataService(),
-        fakeKeyService(),
+        exportBuilder(),
         theValidator,
-        gaenSigner(),
         gaenValidationUtils(),
         Duration.ofMillis(releaseBucketDuration),
         Duration.ofMillis(requestTime),
         Duration.ofMillis(exposedListCacheControl),
-        keyVault.get("nextDayJWT").getPrivate());
+        keyVault.get("nextDayJWT").getPrivate(),
+        requestTimeNormalizer());
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public RequestTimeNormalizer requestTimeNormalizer() {
+    return new RequestTimeNormalizer(requestTimeThreads);
+  }
+
+  @Bean
+  public KeyFragmentCache keyFragmentCache() {
+    return new KeyFragmentCache(keyFragmentMaxEntries);
+  }
+
+  @Bean
+  public ExportCache exportCache() {
+    return new ExportCache(exportCacheMaxBytes, exportEtagMaxEntries);
+  }
+
+  @Bean
+  public ExportBuilder exportBuilder() {
+    return new ExportBuilder(
+        gaenDataService(), fakeKeyService(), gaenSigner(), exportCache(), bundleTaskExecutor());
+  }
+
+  @Bean
+  public ExportPreGenerator exportPreGenerator() {
+    return new ExportPreGenerator(
+        exportBuilder(),
+        exportTaskExecutor(),
+        Duration.ofMillis(releaseBucketDuration),
+        Duration.ofDays(retentionDays));
+  }
+
+  @Bean
+  public ThreadPoolTaskExecutor exportTaskExecutor() {
+    ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+    taskExecutor.setThreadNamePrefix("export-");
+    taskExecutor.setCorePoolSize(exportThreads);
+    taskExecutor.setMaxPoolSize(exportThreads);
+    return taskExecutor;
+  }
+
+  /**
+   * Builds the days of /exposedbundle which aren't cached yet. It is separate from the executor of
+   * the pre-generation, which is busy at every bucket boundary, and bounded, so that bundle
+   * requests are rejected instead of piling up.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor bundleTaskExecutor() {
+    ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+    taskExecutor.setThreadNamePrefix("bundle-");
+    taskExecutor.setCorePoolSize(bundleThreads);
+    taskExecutor.setMaxPoolSize(bundleThreads);
+    taskExecutor.setQueueCapacity(bundleQueueCapacity);
+    return taskExecutor;
+  }
+
+  @Bean
+  public ThreadPoolTaskExecutor signingTaskExecutor() {
+    ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+    taskExecutor.setThreadNamePrefix("signing-");
+    taskExecutor.setCorePoolSize(signingThreads);
+    taskExecutor.setMaxPoolSize(signingThreads);
+    return taskExecutor;
   }
 
   @Bean
@@ -300,15 +461,72 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
     return new NoValidateRequest(gaenValidationUtils());
   }
 
-  @Bean
+  @Bean(destroyMethod = "shutdown")
   public GAENDataService gaenDataService() {
-    return new JDBCGAENDataServiceImpl(
-        getDbType(), dataSource(), Duration.ofMillis(releaseBucketDuration), timeSkew);
+    if (writeBehindCapacity > 0 && !spoolDirectory.isBlank()) {
+      // the spool would commit an upload as soon as it is queued in memory, and lose it on a crash
+      throw new IllegalStateException(
+          "ws.exposedlist.writebehind.capacity and ws.exposedlist.spool.directory "
+              + "can't be combined");
+    }
+    GAENDataService dataService =
+        new JDBCGAENDataServiceImpl(
+            getDbType(),
+            dataSource(),
+            Duration.ofMillis(releaseBucketDuration),
+            timeSkew,
+            exposedPartitioned,
+            retentionCleaner());
+    var transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource()));
+    if (writeBehindCapacity > 0) {
+      logger.info(
+          "Writing uploaded keys in the background, queue capacity: " + writeBehindCapacity);
+      dataService =
+          new WriteBehindGAENDataService(
+              dataService,
+              transactions,
+              Duration.ofMillis(releaseBucketDuration),
+              writeBehindCapacity,
+              writeBehindBatchSize,
+              Duration.ofMillis(writeBehindInterval));
+    }
+    if (!spoolDirectory.isBlank()) {
+      logger.info("Spooling uploaded keys to " + spoolDirectory);
+      try {
+        dataService =
+            new SpooledGAENDataService(
+                dataService,
+                new UploadSpool(Path.of(spoolDirectory), spoolSegmentSize),
+                transactions,
+                Duration.ofMillis(releaseBucketDuration),
+                Duration.ofMillis(spoolRetryInterval));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return dataService;
   }
 
   @Bean
   public RedeemDataService redeemDataService() {
-    return new JDBCRedeemDataServiceImpl(dataSource());
+    RedeemDataService dataService =
+        new JDBCRedeemDataServiceImpl(getDbType(), dataSource(), retentionCleaner());
+    if (redeemCacheSize > 0) {
+      dataService =
+          new CachingRedeemDataService(dataService, redeemCacheSize, REDEEM_CACHE_STRIPES);
+    }
+    return dataService;
+  }
+
+  @Bean
+  public ClusterJobRunner clusterJobRunner() {
+    return new ClusterJobRunner(getDbType(), dataSource(), clusterNode);
+  }
+
+  @Bean
+  public RetentionCleaner retentionCleaner() {
+    return new RetentionCleaner(
+        dataSource(), cleanupChunkSize, cleanupPauseRatio, Duration.ofMillis(cleanupMaxPause));
   }
 
   @Bean
@@ -329,8 +547,30 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
 
   @Bean
   public ResponseWrapperFilter hashFilter() {
+    SigningEngine signingEngine;
+    var privateKey = keyVault.get("hashFilter").getPrivate();
+    try {
+      // the algorithm jjwt would choose for the key, see SignatureResponseWrapper
+      signingEngine =
+          createSigningEngine(
+              "hashFilter", SignatureAlgorithm.forSigningKey(privateKey).getJcaName(), privateKey);
+    } catch (GeneralSecurityException ex) {
+      throw new RuntimeException("Cannot initialize signer for responses", ex);
+    }
     return new ResponseWrapperFilter(
-        keyVault.get("hashFilter"), retentionDays, protectedHeaders, setDebugHeaders);
+        keyVault.get("hashFilter"),
+        signingEngine,
+        retentionDays,
+        protectedHeaders,
+        setDebugHeaders);
+  }
+
+  private SigningEngine createSigningEngine(String name, String algorithm, PrivateKey privateKey)
+      throws GeneralSecurityException {
+    var signingEngine = new SigningEngine(name, algorithm, privateKey, signingProvider);
+    logger.info("Signing engine {} uses provider {}", name, signingEngine.getProviderName());
+    meterRegistry.ifAvailable(signingEngine::bindTo);
+    return signingEngine;
   }
 
   @Bean
@@ -360,20 +600,67 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
     return taskExecutor;
   }
 
+  /**
+   * Runs the scheduled jobs. Without it, Spring runs all of them on a single thread, so the pauses
+   * of the DB cleanup would delay the export pre-generation and the update of the fake keys.
+   */
+  @Bean
+  public ThreadPoolTaskScheduler taskScheduler() {
+    ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+    taskScheduler.setThreadNamePrefix("scheduler-");
+    taskScheduler.setPoolSize(schedulerThreads);
+    return taskScheduler;
+  }
+
   @Override
   public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+    taskRegistrar.setTaskScheduler(taskScheduler());
     taskRegistrar.addFixedRateTask(
         new IntervalTask(
-            () -> {
-              logger.info("Start DB cleanup");
-              gaenDataService().cleanDB(Duration.ofDays(retentionDays));
-              redeemDataService().cleanDB(Duration.ofDays(2));
-              logger.info("DB cleanup up");
-            },
+            () ->
+                clusterJobRunner()
+                    .runOnce(
+                        "cleanDB",
+                        Duration.ofHours(1),
+                        () -> {
+                          logger.info("Start DB cleanup");
+                          gaenDataService().cleanDB(Duration.ofDays(retentionDays));
+                          redeemDataService().cleanDB(REDEEM_RETENTION);
+                          logger.info("DB cleanup up");
+                        }),
             60 * 60 * 1000L));
 
+    // the cleanup above only runs on one instance, so every instance expires its own cache
+    var redeemDataService = redeemDataService();
+    if (redeemDataService instanceof CachingRedeemDataService) {
+      taskRegistrar.addFixedRateTask(
+          new IntervalTask(
+              () -> ((CachingRedeemDataService) redeemDataService).expire(REDEEM_RETENTION),
+              60 * 60 * 1000L));
+    }
+
+    // the fake keys are kept in memory, so every instance updates its own
     var trigger = new CronTrigger("0 0 2 * * *", TimeZone.getTimeZone(ZoneOffset.UTC));
     taskRegistrar.addCronTask(new CronTask(() -> fakeKeyService().updateFakeKeys(), trigger));
+
+    if (exportPreGenerationEnabled) {
+      if (!exportCache().isEnabled()) {
+        logger.warn(
+            "Export pre-generation is enabled, but ws.exposedlist.cache.maxbytes is 0. Skipping.");
+      } else {
+        // start one second after the next bucket boundary, so every run already sees the keys of
+        // the newly released bucket
+        var now = UTCInstant.now();
+        long initialDelay =
+            now.roundToNextBucket(Duration.ofMillis(releaseBucketDuration))
+                    .getDuration(now)
+                    .toMillis()
+                + 1000;
+        taskRegistrar.addFixedRateTask(
+            new IntervalTask(
+                () -> exportPreGenerator().generate(), releaseBucketDuration, initialDelay));
+      }
+    }
   }
 
   @Override
@@ -10,6 +10,8 @@
 
 package org.dpppt.backend.sdk.ws.config;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.sql.DataSource;
 import org.dpppt.backend.sdk.ws.security.KeyVault;
 import org.dpppt.backend.sdk.ws.security.KeyVault.PrivateKeyNoSuitableEncodingFoundException;
@@ -41,10 +43,14 @@ public abstract class WSCloudBaseConfig extends WSBaseConfig {
   @Bean
   @Override
   public Flyway flyway() {
+    var locations = new ArrayList<String>(List.of("classpath:/db/migration/pgsql_cluster"));
+    if (exposedPartitioned) {
+      locations.add("classpath:/db/migration/pgsql_partitioned");
+    }
     Flyway flyWay =
         Flyway.configure()
             .dataSource(dataSource())
-            .locations("classpath:/db/migration/pgsql_cluster")
+            .locations(locations.toArray(new String[0]))
             .load();
     flyWay.migrate();
     return flyWay;
@@ -13,10 +13,15 @@ package org.dpppt.backend.sdk.ws.config;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Properties;
 import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.ClusterJobRunner;
+import org.dpppt.backend.sdk.data.ReplicaRoutingDataSource;
+import org.dpppt.backend.sdk.data.RetentionCleaner;
 import org.dpppt.backend.sdk.data.gaen.DebugGAENDataService;
 import org.dpppt.backend.sdk.data.gaen.DebugJDBCGAENDataServiceImpl;
 import org.dpppt.backend.sdk.ws.controller.DebugController;
@@ -25,6 +30,7 @@ import org.dpppt.backend.sdk.ws.security.KeyVault.PrivateKeyNoSuitableEncodingFo
 import org.dpppt.backend.sdk.ws.security.KeyVault.PublicKeyNoSuitableEncodingFoundException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.flywaydb.core.Flyway;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -33,6 +39,9 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.IntervalTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
 @Configuration
 @Profile("prod")
@@ -65,6 +74,15 @@ public class WSProdConfig extends WSBaseConfig {
   @Value("${datasource.connectionTimeout}")
   String dataSourceConnectionTimeout;
 
+  @Value("${datasource.replicas.urls:}")
+  String dataSourceReplicaUrls;
+
+  @Value("${datasource.replicas.maxLag: 10000}")
+  long dataSourceReplicaMaxLag;
+
+  @Value("${datasource.replicas.checkInterval: 5000}")
+  long dataSourceReplicaCheckInterval;
+
   @Value("${ws.ecdsa.credentials.privateKey:}")
   private String privateKey;
 
@@ -73,9 +91,27 @@ public class WSProdConfig extends WSBaseConfig {
 
   @Bean(destroyMethod = "close")
   public DataSource dataSource() {
+    var primary = createPool(dataSourceUrl, false);
+    if (dataSourceReplicaUrls.isBlank()) {
+      return primary;
+    }
+    var replicas = new ArrayList<DataSource>();
+    for (String url : dataSourceReplicaUrls.split(",")) {
+      replicas.add(createPool(url.trim(), true));
+    }
+    logger.info("Routing read-only transactions to " + replicas.size() + " replicas");
+    return new ReplicaRoutingDataSource(
+        primary,
+        replicas,
+        Duration.ofMillis(dataSourceReplicaMaxLag),
+        Duration.ofMillis(dataSourceReplicaCheckInterval),
+        Duration.ofMillis(releaseBucketDuration));
+  }
+
+  private HikariDataSource createPool(String url, boolean readOnly) {
     HikariConfig config = new HikariConfig();
     Properties props = new Properties();
-    props.put("url", dataSourceUrl);
+    props.put("url", url);
     props.put("user", dataSourceUser);
     props.put("password", dataSourcePassword);
     config.setDataSourceProperties(props);
@@ -84,16 +120,21 @@ public class WSProdConfig extends WSBaseConfig {
     config.setMaxLifetime(Integer.parseInt(dataSourceMaxLifetime));
     config.setIdleTimeout(Integer.parseInt(dataSourceIdleTimeout));
     config.setConnectionTimeout(Integer.parseInt(dataSourceConnectionTimeout));
+    config.setReadOnly(readOnly);
     return new HikariDataSource(config);
   }
 
   @Bean
   @Override
   public Flyway flyway() {
+    var locations = new ArrayList<String>(List.of("classpath:/db/migration/pgsql"));
+    if (exposedPartitioned) {
+      locations.add("classpath:/db/migration/pgsql_partitioned");
+    }
     Flyway flyWay =
         Flyway.configure()
             .dataSource(dataSource())
-            .locations("classpath:/db/migration/pgsql")
+            .locations(locations.toArray(new String[0]))
             .load();
     flyWay.migrate();
     return flyWay;
@@ -141,19 +182,25 @@ public class WSProdConfig extends WSBaseConfig {
 
   @Profile("debug")
   @Configuration
-  public static class DebugConfig {
+  public static class DebugConfig implements SchedulingConfigurer {
     @Value("${ws.exposedlist.debug.releaseBucketDuration: 86400000}")
     long releaseBucketDuration;
 
     @Value("${ws.exposedlist.debug.requestTime: 1500}")
     long requestTime;
 
+    @Value("${ws.retentiondays: 14}")
+    int retentionDays;
+
     @Autowired KeyVault keyVault;
     @Autowired Flyway flyway;
     @Autowired DataSource dataSource;
+    @Autowired RetentionCleaner retentionCleaner;
+    @Autowired ClusterJobRunner clusterJobRunner;
     @Autowired ProtoSignature gaenSigner;
     @Autowired ValidateRequest backupValidator;
     @Autowired ValidationUtils gaenValidationUtils;
+    @Autowired RequestTimeNormalizer requestTimeNormalizer;
     @Autowired Environment env;
 
     protected boolean isProd() {
@@ -172,7 +219,7 @@ public class WSProdConfig extends WSBaseConfig {
       } else if (isDev()) {
         dbType = "hsqldb";
       }
-      return new DebugJDBCGAENDataServiceImpl(dbType, dataSource);
+      return new DebugJDBCGAENDataServiceImpl(dbType, dataSource, retentionCleaner);
     }
 
     @Bean
@@ -183,7 +230,20 @@ public class WSProdConfig extends WSBaseConfig {
           backupValidator,
           gaenValidationUtils,
           Duration.ofMillis(releaseBucketDuration),
-          Duration.ofMillis(requestTime));
+          Duration.ofMillis(requestTime),
+          requestTimeNormalizer);
+    }
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+      taskRegistrar.addFixedRateTask(
+          new IntervalTask(
+              () ->
+                  clusterJobRunner.runOnce(
+                      "debugCleanDB",
+                      Duration.ofHours(1),
+                      () -> dataService().cleanDB(Duration.ofDays(retentionDays))),
+              60 * 60 * 1000L));
     }
   }
 }
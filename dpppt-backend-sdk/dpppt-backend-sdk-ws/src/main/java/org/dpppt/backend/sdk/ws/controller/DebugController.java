@@ -7,6 +7,7 @@ import java.security.SignatureException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import javax.validation.Valid;
 import org.dpppt.backend.sdk.data.gaen.DebugGAENDataService;
 import org.dpppt.backend.sdk.model.gaen.DayBuckets;
@@ -18,6 +19,7 @@ import org.dpppt.backend.sdk.ws.security.ValidateRequest.ClaimIsBeforeOnsetExcep
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.WrongScopeException;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.BadBatchReleaseTimeException;
 import org.springframework.http.HttpStatus;
@@ -43,6 +45,7 @@ public class DebugController {
   private final Duration requestTime;
   private final ProtoSignature gaenSigner;
   private final DebugGAENDataService dataService;
+  private final RequestTimeNormalizer requestTimeNormalizer;
 
   public DebugController(
       DebugGAENDataService dataService,
@@ -50,17 +53,19 @@ public class DebugController {
       ValidateRequest validateRequest,
       ValidationUtils validationUtils,
       Duration releaseBucketDuration,
-      Duration requestTime) {
+      Duration requestTime,
+      RequestTimeNormalizer requestTimeNormalizer) {
     this.validateRequest = validateRequest;
     this.validationUtils = validationUtils;
     this.releaseBucketDuration = releaseBucketDuration;
     this.requestTime = requestTime;
     this.gaenSigner = gaenSigner;
     this.dataService = dataService;
+    this.requestTimeNormalizer = requestTimeNormalizer;
   }
 
   @PostMapping(value = "/exposed")
-  public @ResponseBody ResponseEntity<String> addExposed(
+  public @ResponseBody CompletableFuture<ResponseEntity<String>> addExposed(
       @Valid @RequestBody GaenRequest gaenRequest,
       @RequestHeader(value = "User-Agent", required = true) String userAgent,
       @RequestHeader(value = "X-Device-Name", required = true) String deviceName,
@@ -71,8 +76,9 @@ public class DebugController {
 
     List<GaenKey> nonFakeKeys = new ArrayList<>();
     for (var key : gaenRequest.getGaenKeys()) {
-      if (!validationUtils.isValidKeyFormat(key.getKeyData())) {
-        return new ResponseEntity<>("No valid base64 key", HttpStatus.BAD_REQUEST);
+      if (!validationUtils.isValidKeyFormat(key)) {
+        return CompletableFuture.completedFuture(
+            new ResponseEntity<>("No valid base64 key", HttpStatus.BAD_REQUEST));
       }
       this.validateRequest.validateKeyDate(now, principal, key);
       if (this.validateRequest.isFakeRequest(principal, key)) {
@@ -85,16 +91,14 @@ public class DebugController {
         && ((Jwt) principal).containsClaim("fake")
         && ((Jwt) principal).getClaim("fake").equals("1")
         && !nonFakeKeys.isEmpty()) {
-      return ResponseEntity.badRequest().body("Claim is fake but list contains non fake keys");
+      return CompletableFuture.completedFuture(
+          ResponseEntity.badRequest().body("Claim is fake but list contains non fake keys"));
     }
     if (!nonFakeKeys.isEmpty()) {
       dataService.upsertExposees(deviceName, nonFakeKeys);
     }
 
-    var responseBuilder = ResponseEntity.ok();
-
-    normalizeRequestTime(now.getTimestamp());
-    return responseBuilder.build();
+    return requestTimeNormalizer.normalize(now, requestTime, ResponseEntity.ok().build());
   }
 
   @GetMapping(value = "/exposed/{batchReleaseTime}", produces = "application/zip")
@@ -140,14 +144,4 @@ public class DebugController {
 
     return ResponseEntity.ok(dayBuckets);
   }
-
-  private void normalizeRequestTime(long now) {
-    long after = UTCInstant.now().getTimestamp();
-    long duration = after - now;
-    try {
-      Thread.sleep(Math.max(requestTime.minusMillis(duration).toMillis(), 0));
-    } catch (Exception ex) {
-
-    }
-  }
 }
@@ -22,16 +22,15 @@ import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import javax.validation.Valid;
-import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
-import org.dpppt.backend.sdk.data.gaen.GAENDataService;
 import org.dpppt.backend.sdk.model.gaen.DayBuckets;
 import org.dpppt.backend.sdk.model.gaen.GaenRequest;
 import org.dpppt.backend.sdk.model.gaen.GaenSecondDay;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
-import org.dpppt.backend.sdk.utils.DurationExpiredException;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.export.ExportBuilder;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertException;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat.KeyFormatException;
@@ -39,8 +38,8 @@ import org.dpppt.backend.sdk.ws.security.ValidateRequest;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.ClaimIsBeforeOnsetException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.WrongScopeException;
-import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.BadBatchReleaseTimeException;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.DelayedKeyDateClaimIsMissing;
@@ -87,35 +86,32 @@ public class GaenController {
   private final ValidationUtils validationUtils;
   private final InsertManager insertManagerExposed;
   private final InsertManager insertManagerExposedNextDay;
-  private final GAENDataService dataService;
-  private final FakeKeyService fakeKeyService;
   private final Duration exposedListCacheControl;
   private final PrivateKey secondDayKey;
-  private final ProtoSignature gaenSigner;
+  private final ExportBuilder exportBuilder;
+  private final RequestTimeNormalizer requestTimeNormalizer;
 
   public GaenController(
       InsertManager insertManagerExposed,
       InsertManager insertManagerExposedNextDay,
-      GAENDataService dataService,
-      FakeKeyService fakeKeyService,
+      ExportBuilder exportBuilder,
       ValidateRequest validateRequest,
-      ProtoSignature gaenSigner,
       ValidationUtils validationUtils,
       Duration releaseBucketDuration,
       Duration requestTime,
       Duration exposedListCacheControl,
-      PrivateKey secondDayKey) {
+      PrivateKey secondDayKey,
+      RequestTimeNormalizer requestTimeNormalizer) {
     this.insertManagerExposed = insertManagerExposed;
     this.insertManagerExposedNextDay = insertManagerExposedNextDay;
-    this.dataService = dataService;
-    this.fakeKeyService = fakeKeyService;
     this.releaseBucketDuration = releaseBucketDuration;
     this.validateRequest = validateRequest;
     this.requestTime = requestTime;
     this.validationUtils = validationUtils;
     this.exposedListCacheControl = exposedListCacheControl;
     this.secondDayKey = secondDayKey;
-    this.gaenSigner = gaenSigner;
+    this.exportBuilder = exportBuilder;
+    this.requestTimeNormalizer = requestTimeNormalizer;
   }
 
   @GetMapping(value = "")
@@ -136,7 +132,7 @@ public class GaenController {
         "400=>Invalid base64 encoding in GaenRequest",
         "403=>Authentication failed"
       })
-  public @ResponseBody Callable<ResponseEntity<String>> addExposed(
+  public @ResponseBody CompletableFuture<ResponseEntity<String>> addExposed(
       @Valid
           @RequestBody
           @Documentation(
@@ -185,16 +181,7 @@ public class GaenController {
       String jwt = jwtBuilder.signWith(secondDayKey).compact();
       responseBuilder.header("Authorization", "Bearer " + jwt);
     }
-    Callable<ResponseEntity<String>> cb =
-        () -> {
-          try {
-            now.normalizeDuration(requestTime);
-          } catch (DurationExpiredException e) {
-            logger.error("Total time spent in endpoint is longer than requestTime");
-          }
-          return responseBuilder.body("OK");
-        };
-    return cb;
+    return requestTimeNormalizer.normalize(now, requestTime, responseBuilder.body("OK"));
   }
 
   @PostMapping(value = "/exposednextday")
@@ -209,7 +196,7 @@ public class GaenController {
             + "- TEK-date does not match delayedKeyDAte claim in Jwt",
         "403=>No delayedKeyDate claim in authentication"
       })
-  public @ResponseBody Callable<ResponseEntity<String>> addExposedSecond(
+  public @ResponseBody CompletableFuture<ResponseEntity<String>> addExposedSecond(
       @Valid @RequestBody @Documentation(description = "The last exposed key of the user")
           GaenSecondDay gaenSecondDay,
       @Documentation(
@@ -237,14 +224,7 @@ public class GaenController {
     insertManagerExposedNextDay.insertIntoDatabase(
         List.of(gaenSecondDay.getDelayedKey()), userAgent, principal, now);
 
-    return () -> {
-      try {
-        now.normalizeDuration(requestTime);
-      } catch (DurationExpiredException e) {
-        logger.error("Total time spent in endpoint is longer than requestTime");
-      }
-      return ResponseEntity.ok().body("OK");
-    };
+    return requestTimeNormalizer.normalize(now, requestTime, ResponseEntity.ok().body("OK"));
   }
 
   @GetMapping(value = "/exposed/{keyDate}", produces = "application/zip")
@@ -252,6 +232,7 @@ public class GaenController {
       description = "Request the exposed key from a given date",
       responses = {
         "200=>zipped export.bin and export.sig of all keys in that interval",
+        "304=>the export matching _If-None-Match_ is still current",
         "404=>"
             + "- invalid starting key date, doesn't point to midnight UTC"
             + "- _publishedAfter_ is not at the beginning of a batch release time, currently 2h",
@@ -271,7 +252,14 @@ public class GaenController {
                   "Restrict returned Exposed Keys to dates after this parameter. Given in"
                       + " milliseconds since Unix epoch (1970-01-01).",
               example = "1593043200000")
-          Long publishedafter)
+          Long publishedafter,
+      @RequestHeader(value = "If-None-Match", required = false)
+          @Documentation(
+              description =
+                  "ETag of a previously received export. If it is still current, 304 is returned"
+                      + " without a body.",
+              example = "\"0f6a5c1b3d...\"")
+          String ifNoneMatch)
       throws BadBatchReleaseTimeException, IOException, InvalidKeyException, SignatureException,
           NoSuchAlgorithmException {
     var now = UTCInstant.now();
@@ -289,26 +277,154 @@ public class GaenController {
     // calculate exposed until bucket
     UTCInstant publishedUntil = now.roundToBucketStart(releaseBucketDuration);
 
-    var exposedKeys =
-        dataService.getSortedExposedForKeyDate(
-            keyDateInstant, publishedAfterInstant, publishedUntil, now);
-    exposedKeys =
-        fakeKeyService.fillUpKeys(exposedKeys, publishedAfterInstant, keyDateInstant, now);
-    if (exposedKeys.isEmpty()) {
+    // answer conditional requests from the ETag index, without loading or signing any keys
+    if (ifNoneMatch != null) {
+      String etag =
+          exportBuilder
+              .getExportCache()
+              .getEtag(keyDateInstant, publishedAfterInstant, publishedUntil);
+      if (etagMatches(ifNoneMatch, etag)) {
+        return notModified(etag, publishedUntil);
+      }
+    }
+
+    // the export only changes when publishedUntil moves to the next bucket, so it is served from
+    // the export cache if it was already built in this bucket
+    ProtoSignatureWrapper payload =
+        exportBuilder.getExport(keyDateInstant, publishedAfterInstant, publishedUntil, now);
+    if (payload == null) {
       return ResponseEntity.noContent()
           .cacheControl(CacheControl.maxAge(exposedListCacheControl))
           .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
           .build();
     }
 
-    ProtoSignatureWrapper payload = gaenSigner.getPayload(exposedKeys);
+    if (ifNoneMatch != null && etagMatches(ifNoneMatch, payload.getEtag())) {
+      return notModified(payload.getEtag(), publishedUntil);
+    }
 
     return ResponseEntity.ok()
         .cacheControl(CacheControl.maxAge(exposedListCacheControl))
         .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
+        .eTag(payload.getEtag())
         .body(payload.getZip());
   }
 
+  @GetMapping(value = "/exposedbundle", produces = "application/zip")
+  @Documentation(
+      description =
+          "Request the exposed keys of all days from a given date until today in one response",
+      responses = {
+        "200=>zip with one key_export_{yyyy-MM-dd} entry per day with keys, each containing the"
+            + " zipped export.bin and export.sig of that day",
+        "204=>no keys were published in that interval",
+        "304=>the bundle matching _If-None-Match_ is still current",
+        "503=>too many bundles are being built at the moment",
+        "404=>"
+            + "- invalid starting key date, doesn't point to midnight UTC or is outside of the"
+            + " retention period"
+            + "- _publishedAfter_ is not at the beginning of a batch release time, currently 2h",
+      })
+  public @ResponseBody ResponseEntity<byte[]> getExposedKeysBundle(
+      @RequestParam
+          @Documentation(
+              description =
+                  "First date for Exposed Keys retrieval, in milliseconds since Unix epoch"
+                      + " (1970-01-01). It must indicate the beginning of a TEKRollingPeriod,"
+                      + " currently midnight UTC. All days until today are included.",
+              example = "1593043200000")
+          long from,
+      @RequestParam(required = false)
+          @Documentation(
+              description =
+                  "Restrict returned Exposed Keys to dates after this parameter. Given in"
+                      + " milliseconds since Unix epoch (1970-01-01).",
+              example = "1593043200000")
+          Long publishedafter,
+      @RequestHeader(value = "If-None-Match", required = false)
+          @Documentation(
+              description =
+                  "ETag of a previously received bundle. If it is still current, 304 is returned"
+                      + " without a body.",
+              example = "\"0f6a5c1b3d...\"")
+          String ifNoneMatch)
+      throws BadBatchReleaseTimeException, IOException, InvalidKeyException, SignatureException,
+          NoSuchAlgorithmException {
+    var now = UTCInstant.now();
+    var publishedAfterInstant = UTCInstant.ofEpochMillis(publishedafter);
+    var fromInstant = UTCInstant.ofEpochMillis(from);
+    var today = now.atStartOfDay();
+
+    if (!validationUtils.isValidKeyDate(fromInstant)
+        || validationUtils.isBeforeRetention(fromInstant, now)
+        || fromInstant.isAfterEpochMillisOf(today)) {
+      return ResponseEntity.notFound().build();
+    }
+    if (publishedafter != null
+        && !validationUtils.isValidBatchReleaseTime(publishedAfterInstant, now)) {
+      return ResponseEntity.notFound().build();
+    }
+
+    UTCInstant publishedUntil = now.roundToBucketStart(releaseBucketDuration);
+
+    if (ifNoneMatch != null) {
+      String etag =
+          exportBuilder
+              .getExportCache()
+              .getBundleEtag(fromInstant, publishedAfterInstant, publishedUntil);
+      if (etagMatches(ifNoneMatch, etag)) {
+        return notModified(etag, publishedUntil);
+      }
+    }
+
+    // built from the cached exports of the single days, and cached itself for the whole bucket
+    ProtoSignatureWrapper payload =
+        exportBuilder.getBundle(fromInstant, publishedAfterInstant, publishedUntil, now);
+    if (payload == null) {
+      return ResponseEntity.noContent()
+          .cacheControl(CacheControl.maxAge(exposedListCacheControl))
+          .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
+          .build();
+    }
+    if (ifNoneMatch != null && etagMatches(ifNoneMatch, payload.getEtag())) {
+      return notModified(payload.getEtag(), publishedUntil);
+    }
+
+    return ResponseEntity.ok()
+        .cacheControl(CacheControl.maxAge(exposedListCacheControl))
+        .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
+        .eTag(payload.getEtag())
+        .body(payload.getZip());
+  }
+
+  private ResponseEntity<byte[]> notModified(String etag, UTCInstant publishedUntil) {
+    return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+        .cacheControl(CacheControl.maxAge(exposedListCacheControl))
+        .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
+        .eTag(etag)
+        .build();
+  }
+
+  /**
+   * Checks the value of an If-None-Match header against the ETag of the current export. The header
+   * may contain a list of (weak) entity tags, or `*`.
+   */
+  private static boolean etagMatches(String ifNoneMatch, String etag) {
+    if (etag == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @GetMapping(value = "/buckets/{dayDateStr}")
   @Documentation(
       description = "Request the available release batch times for a given day",
@@ -373,6 +489,12 @@ public class GaenController {
     return ResponseEntity.badRequest().build();
   }
 
+  @ExceptionHandler({RejectedExecutionException.class})
+  @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+  public ResponseEntity<Object> overloaded() {
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+  }
+
   @ExceptionHandler({WrongScopeException.class})
   @ResponseStatus(HttpStatus.FORBIDDEN)
   public ResponseEntity<Object> forbidden() {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.export;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
+import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+
+/**
+ * Builds the signed export of the exposed keys for a given key date. This is shared by the {@link
+ * org.dpppt.backend.sdk.ws.controller.GaenController} and the {@link ExportPreGenerator}, so both
+ * produce exactly the same archive for the same parameters.
+ */
+public class ExportBuilder {
+
+  private final GAENDataService dataService;
+  private final FakeKeyService fakeKeyService;
+  private final ProtoSignature gaenSigner;
+  private final ExportCache exportCache;
+  private final Executor bundleExecutor;
+
+  public ExportBuilder(
+      GAENDataService dataService,
+      FakeKeyService fakeKeyService,
+      ProtoSignature gaenSigner,
+      ExportCache exportCache,
+      Executor bundleExecutor) {
+    this.dataService = dataService;
+    this.fakeKeyService = fakeKeyService;
+    this.gaenSigner = gaenSigner;
+    this.exportCache = exportCache;
+    this.bundleExecutor = bundleExecutor;
+  }
+
+  /**
+   * Returns the export from the cache, or builds and caches it if it is not there yet.
+   *
+   * @param keyDate must be midnight UTC
+   * @param publishedAfter when publication should start, may be null
+   * @param publishedUntil last publication, must be the start of a release bucket
+   * @param now the current time
+   * @return the signed export, or null if there are no keys to publish
+   */
+  public ProtoSignatureWrapper getExport(
+      UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    ProtoSignatureWrapper cached = exportCache.get(keyDate, publishedAfter, publishedUntil);
+    if (cached != null) {
+      return cached;
+    }
+    ProtoSignatureWrapper export = buildExport(keyDate, publishedAfter, publishedUntil, now);
+    if (export != null) {
+      exportCache.put(keyDate, publishedAfter, publishedUntil, export);
+    }
+    return export;
+  }
+
+  /**
+   * Loads the keys from the database, pads them with fake keys and signs them, bypassing the cache.
+   *
+   * @return the signed export, or null if there are no keys to publish
+   */
+  public ProtoSignatureWrapper buildExport(
+      UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var exposedKeys = loadKeys(keyDate, publishedAfter, publishedUntil, now);
+    if (exposedKeys.isEmpty()) {
+      return null;
+    }
+    return gaenSigner.getPayload(exposedKeys);
+  }
+
+  /**
+   * Returns the bundle of the exports of all days from `from` until today from the cache, or builds
+   * and caches it if it is not there yet. It is assembled from the exports of {@link #getExport},
+   * so days which are already cached are neither loaded nor signed again. The days which aren't
+   * cached are built in parallel on the bundle executor.
+   *
+   * @param from the first key date to include, must be midnight UTC
+   * @param publishedAfter when publication should start, may be null
+   * @param publishedUntil last publication, must be the start of a release bucket
+   * @param now the current time
+   * @return the nested archive, or null if none of the days has keys to publish
+   */
+  public ProtoSignatureWrapper getBundle(
+      UTCInstant from, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    ProtoSignatureWrapper cached = exportCache.getBundle(from, publishedAfter, publishedUntil);
+    if (cached != null) {
+      return cached;
+    }
+    var keyDates = new ArrayList<UTCInstant>();
+    var exports = new ArrayList<CompletableFuture<ProtoSignatureWrapper>>();
+    var today = now.atStartOfDay();
+    for (var keyDate = from; !keyDate.isAfterEpochMillisOf(today); keyDate = keyDate.plusDays(1)) {
+      var currentKeyDate = keyDate;
+      keyDates.add(keyDate);
+      exports.add(
+          CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  return getExport(currentKeyDate, publishedAfter, publishedUntil, now);
+                } catch (IOException
+                    | InvalidKeyException
+                    | SignatureException
+                    | NoSuchAlgorithmException e) {
+                  throw new CompletionException(e);
+                }
+              },
+              bundleExecutor));
+    }
+    var exportsByDay = new LinkedHashMap<String, ProtoSignatureWrapper>();
+    for (int i = 0; i < keyDates.size(); i++) {
+      var export = join(exports.get(i));
+      if (export != null) {
+        exportsByDay.put(keyDates.get(i).getLocalDate().toString(), export);
+      }
+    }
+    if (exportsByDay.isEmpty()) {
+      return null;
+    }
+    var bundle = gaenSigner.getBundle(exportsByDay);
+    exportCache.putBundle(from, publishedAfter, publishedUntil, bundle);
+    return bundle;
+  }
+
+  /** Waits for the export of a day, rethrowing the checked exceptions of building it. */
+  private static ProtoSignatureWrapper join(CompletableFuture<ProtoSignatureWrapper> export)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    try {
+      return export.join();
+    } catch (CompletionException e) {
+      var cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      } else if (cause instanceof SignatureException) {
+        throw (SignatureException) cause;
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw e;
+    }
+  }
+
+  private List<GaenKey> loadKeys(
+      UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, UTCInstant now) {
+    var exposedKeys =
+        dataService.getSortedExposedForKeyDate(keyDate, publishedAfter, publishedUntil, now);
+    return fakeKeyService.fillUpKeys(exposedKeys, publishedAfter, keyDate, now);
+  }
+
+  public ExportCache getExportCache() {
+    return exportCache;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.export;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process cache of signed exposed key exports. An export only changes when `publishedUntil`
+ * crosses a release bucket boundary, so entries are keyed by (keyDate, publishedAfter,
+ * publishedUntil). As soon as a newer `publishedUntil` is seen, all entries of the previous bucket
+ * are dropped. The total size of the cached ZIPs is bounded by `maxBytes`, evicting the least
+ * recently used entries first. A `maxBytes` of 0 disables caching of the ZIPs.
+ *
+ * <p>Independently of the ZIPs, the ETag of every export put into the cache is kept in a small
+ * index bounded by `maxEtags` entries. This allows answering conditional requests without loading
+ * or signing the keys, even if the ZIP cache is disabled.
+ *
+ * <p>Bundles of the exports of several days are cached the same way, keyed by their first key
+ * date, and share the size bound with the exports.
+ */
+public class ExportCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(ExportCache.class);
+
+  private final long maxBytes;
+  private final LinkedHashMap<ExportKey, ProtoSignatureWrapper> entries =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<ExportKey, String> etags;
+
+  private long currentBytes = 0;
+  private long currentPublishedUntil = Long.MIN_VALUE;
+
+  public ExportCache(long maxBytes, int maxEtags) {
+    this.maxBytes = maxBytes;
+    this.etags =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<ExportKey, String> eldest) {
+            return size() > maxEtags;
+          }
+        };
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Returns the cached export for the given parameters, or null if there is none.
+   *
+   * @param keyDate must be midnight UTC
+   * @param publishedAfter when publication should start
+   * @param publishedUntil last publication, must be the start of a release bucket
+   * @return the cached export or null
+   */
+  public synchronized ProtoSignatureWrapper get(
+      UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil) {
+    if (!isEnabled()) {
+      return null;
+    }
+    rollOver(publishedUntil);
+    return entries.get(new ExportKey(keyDate, publishedAfter, publishedUntil, false));
+  }
+
+  /**
+   * Returns the cached bundle of all days from `from` until the day of `publishedUntil`, or null
+   * if there is none.
+   */
+  public synchronized ProtoSignatureWrapper getBundle(
+      UTCInstant from, UTCInstant publishedAfter, UTCInstant publishedUntil) {
+    if (!isEnabled()) {
+      return null;
+    }
+    rollOver(publishedUntil);
+    return entries.get(new ExportKey(from, publishedAfter, publishedUntil, true));
+  }
+
+  /**
+   * Returns the ETag of the export for the given parameters, if it was built in this bucket.
+   *
+   * @return the ETag, or null if it is not known
+   */
+  public synchronized String getEtag(
+      UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil) {
+    rollOver(publishedUntil);
+    return etags.get(new ExportKey(keyDate, publishedAfter, publishedUntil, false));
+  }
+
+  /** Returns the ETag of the bundle for the given parameters, if it was built in this bucket. */
+  public synchronized String getBundleEtag(
+      UTCInstant from, UTCInstant publishedAfter, UTCInstant publishedUntil) {
+    rollOver(publishedUntil);
+    return etags.get(new ExportKey(from, publishedAfter, publishedUntil, true));
+  }
+
+  /**
+   * Stores the export for the given parameters. Exports of a bucket older than the newest bucket
+   * seen so far are not stored, as they would be dropped immediately.
+   */
+  public synchronized void put(
+      UTCInstant keyDate,
+      UTCInstant publishedAfter,
+      UTCInstant publishedUntil,
+      ProtoSignatureWrapper export) {
+    put(new ExportKey(keyDate, publishedAfter, publishedUntil, false), export);
+  }
+
+  /** Stores the bundle of all days from `from` until the day of `publishedUntil`. */
+  public synchronized void putBundle(
+      UTCInstant from,
+      UTCInstant publishedAfter,
+      UTCInstant publishedUntil,
+      ProtoSignatureWrapper bundle) {
+    put(new ExportKey(from, publishedAfter, publishedUntil, true), bundle);
+  }
+
+  private void put(ExportKey key, ProtoSignatureWrapper export) {
+    rollOver(new UTCInstant(key.publishedUntil));
+    if (key.publishedUntil < currentPublishedUntil) {
+      return;
+    }
+    etags.put(key, export.getEtag());
+    if (!isEnabled() || export.getZip().length > maxBytes) {
+      return;
+    }
+    var previous = entries.put(key, export);
+    if (previous != null) {
+      currentBytes -= previous.getZip().length;
+    }
+    currentBytes += export.getZip().length;
+    evict();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    etags.clear();
+    currentBytes = 0;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getCurrentBytes() {
+    return currentBytes;
+  }
+
+  private void rollOver(UTCInstant publishedUntil) {
+    if (publishedUntil.getTimestamp() > currentPublishedUntil) {
+      if (!entries.isEmpty()) {
+        logger.debug(
+            "Release bucket rolled over to {}, dropping {} cached exports",
+            publishedUntil.getOffsetDateTime(),
+            entries.size());
+      }
+      clear();
+      currentPublishedUntil = publishedUntil.getTimestamp();
+    }
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<ExportKey, ProtoSignatureWrapper>> it = entries.entrySet().iterator();
+    while (currentBytes > maxBytes && it.hasNext()) {
+      currentBytes -= it.next().getValue().getZip().length;
+      it.remove();
+    }
+  }
+
+  private static final class ExportKey {
+    private final long keyDate;
+    private final long publishedAfter;
+    private final long publishedUntil;
+    private final boolean bundle;
+
+    ExportKey(
+        UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil, boolean bundle) {
+      this.keyDate = keyDate.getTimestamp();
+      this.publishedAfter = publishedAfter == null ? 0 : publishedAfter.getTimestamp();
+      this.publishedUntil = publishedUntil.getTimestamp();
+      this.bundle = bundle;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ExportKey)) {
+        return false;
+      }
+      ExportKey other = (ExportKey) o;
+      return keyDate == other.keyDate
+          && publishedAfter == other.publishedAfter
+          && publishedUntil == other.publishedUntil
+          && bundle == other.bundle;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(keyDate, publishedAfter, publishedUntil, bundle);
+    }
+  }
+}
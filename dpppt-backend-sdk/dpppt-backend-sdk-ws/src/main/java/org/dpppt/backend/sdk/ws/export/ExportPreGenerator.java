@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.export;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds and signs all exports of the current release bucket ahead of time and stores them in the
+ * {@link ExportCache}, so the first clients after a bucket boundary don't have to wait for the
+ * database and the signer. This covers every key date within the retention period, combined with
+ * every valid `publishedAfter` (including none). Key dates are processed in parallel on the given
+ * executor.
+ */
+public class ExportPreGenerator {
+
+  private static final Logger logger = LoggerFactory.getLogger(ExportPreGenerator.class);
+
+  private final ExportBuilder exportBuilder;
+  private final Executor executor;
+  private final Duration releaseBucketDuration;
+  private final Duration retentionPeriod;
+
+  private final AtomicBoolean running = new AtomicBoolean(false);
+
+  private volatile RunStatistics lastRun;
+
+  public ExportPreGenerator(
+      ExportBuilder exportBuilder,
+      Executor executor,
+      Duration releaseBucketDuration,
+      Duration retentionPeriod) {
+    this.exportBuilder = exportBuilder;
+    this.executor = executor;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.retentionPeriod = retentionPeriod;
+  }
+
+  /**
+   * Generates all exports for the bucket `now` is in. If a previous run is still in progress, this
+   * run is skipped.
+   */
+  public void generate() {
+    if (!running.compareAndSet(false, true)) {
+      logger.warn("Previous export pre-generation still running, skipping");
+      return;
+    }
+    try {
+      generate(UTCInstant.now());
+    } finally {
+      running.set(false);
+    }
+  }
+
+  RunStatistics generate(UTCInstant now) {
+    var start = System.nanoTime();
+    var publishedUntil = now.roundToBucketStart(releaseBucketDuration);
+    var publishedAfters = getPublishedAfters(now);
+    var artifacts = new AtomicLong();
+    var bytes = new AtomicLong();
+    var failures = new AtomicLong();
+
+    var tasks = new ArrayList<CompletableFuture<Void>>();
+    var today = now.atStartOfDay();
+    for (var keyDate = today.minus(retentionPeriod);
+        !keyDate.isAfterEpochMillisOf(today);
+        keyDate = keyDate.plusDays(1)) {
+      var currentKeyDate = keyDate;
+      tasks.add(
+          CompletableFuture.runAsync(
+              () -> {
+                for (var publishedAfter : publishedAfters) {
+                  try {
+                    var export =
+                        exportBuilder.buildExport(
+                            currentKeyDate, publishedAfter, publishedUntil, now);
+                    if (export != null) {
+                      exportBuilder
+                          .getExportCache()
+                          .put(currentKeyDate, publishedAfter, publishedUntil, export);
+                      artifacts.incrementAndGet();
+                      bytes.addAndGet(export.getZip().length);
+                    }
+                  } catch (Exception e) {
+                    failures.incrementAndGet();
+                    logger.error(
+                        "Could not pre-generate export for keyDate {} publishedAfter {}",
+                        currentKeyDate.getLocalDate(),
+                        publishedAfter == null ? null : publishedAfter.getTimestamp(),
+                        e);
+                  }
+                }
+              },
+              executor));
+    }
+    CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+
+    var statistics =
+        new RunStatistics(
+            publishedUntil,
+            Duration.ofNanos(System.nanoTime() - start),
+            artifacts.get(),
+            bytes.get(),
+            failures.get());
+    logger.info(
+        "Pre-generated {} exports ({} bytes, {} failures) for bucket {} in {} ms",
+        statistics.getArtifacts(),
+        statistics.getBytes(),
+        statistics.getFailures(),
+        publishedUntil.getOffsetDateTime(),
+        statistics.getDuration().toMillis());
+    lastRun = statistics;
+    return statistics;
+  }
+
+  /**
+   * All values of `publishedAfter` a client may send at `now`: none, or the start of any bucket
+   * within the retention period.
+   */
+  List<UTCInstant> getPublishedAfters(UTCInstant now) {
+    var publishedAfters = new ArrayList<UTCInstant>();
+    publishedAfters.add(null);
+    var retention = now.minus(retentionPeriod);
+    for (var bucket = now.roundToBucketStart(releaseBucketDuration);
+        bucket.isAfterEpochMillisOf(retention);
+        bucket = bucket.minus(releaseBucketDuration)) {
+      if (bucket.isBeforeEpochMillisOf(now)) {
+        publishedAfters.add(bucket);
+      }
+    }
+    return publishedAfters;
+  }
+
+  /** @return the statistics of the last completed run, or null if there was none yet */
+  public RunStatistics getLastRun() {
+    return lastRun;
+  }
+
+  public static class RunStatistics {
+    private final UTCInstant publishedUntil;
+    private final Duration duration;
+    private final long artifacts;
+    private final long bytes;
+    private final long failures;
+
+    public RunStatistics(
+        UTCInstant publishedUntil, Duration duration, long artifacts, long bytes, long failures) {
+      this.publishedUntil = publishedUntil;
+      this.duration = duration;
+      this.artifacts = artifacts;
+      this.bytes = bytes;
+      this.failures = failures;
+    }
+
+    public UTCInstant getPublishedUntil() {
+      return publishedUntil;
+    }
+
+    public Duration getDuration() {
+      return duration;
+    }
+
+    public long getArtifacts() {
+      return artifacts;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public long getFailures() {
+      return failures;
+    }
+  }
+}
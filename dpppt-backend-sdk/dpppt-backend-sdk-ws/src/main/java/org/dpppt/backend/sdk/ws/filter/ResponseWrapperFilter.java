@@ -25,10 +25,12 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.dpppt.backend.sdk.ws.security.signature.SignatureResponseWrapper;
+import org.dpppt.backend.sdk.ws.security.signature.SigningEngine;
 
 public class ResponseWrapperFilter implements Filter {
 
   private final KeyPair pair;
+  private final SigningEngine signingEngine;
   private final int retentionDays;
   private final List<String> protectedHeaders;
   private final boolean setDebugHeaders;
@@ -38,10 +40,17 @@ public class ResponseWrapperFilter implements Filter {
   }
 
   public ResponseWrapperFilter(
-      KeyPair pair, int retentionDays, List<String> protectedHeaders, boolean setDebugHeaders) {
+      KeyPair pair,
+      SigningEngine signingEngine,
+      int retentionDays,
+      List<String> protectedHeaders,
+      boolean setDebugHeaders) {
     Security.addProvider(new BouncyCastleProvider());
     Security.setProperty("crypto.policy", "unlimited");
+    // fail on startup if the key and the signing engine don't match
+    SignatureResponseWrapper.jwsAlgorithm(pair, signingEngine);
     this.pair = pair;
+    this.signingEngine = signingEngine;
     this.retentionDays = retentionDays;
     this.protectedHeaders = protectedHeaders;
     this.setDebugHeaders = setDebugHeaders;
@@ -54,7 +63,7 @@ public class ResponseWrapperFilter implements Filter {
 
     SignatureResponseWrapper wrapper =
         new SignatureResponseWrapper(
-            httpResponse, pair, retentionDays, protectedHeaders, setDebugHeaders);
+            httpResponse, pair, signingEngine, retentionDays, protectedHeaders, setDebugHeaders);
     chain.doFilter(request, wrapper);
     try {
       request
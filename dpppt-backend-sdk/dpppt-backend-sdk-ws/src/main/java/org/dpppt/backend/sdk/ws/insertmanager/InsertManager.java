@@ -4,9 +4,10 @@ import java.util.ArrayList;
 import java.util.List;
 import org.dpppt.backend.sdk.data.gaen.GAENDataService;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
-import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.KeyInsertionFilter;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.KeyPredicateFilter;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.KeyPredicateFilter.KeyPredicate;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionmodifier.KeyInsertionModifier;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.slf4j.Logger;
@@ -19,6 +20,9 @@ import org.slf4j.LoggerFactory;
  * remaining keys are then inserted into the database. If any of the modifiers filters throws an
  * {@Link InsertException} the process of insertions is aborted and the exception is propagated back
  * to the caller, which is responsible for handling the exception.
+ *
+ * <p>Consecutive {@link KeyPredicateFilter}s are applied together in a single pass over the keys.
+ * The User-Agent headers are parsed by a {@link UserAgentCache}.
  */
 public class InsertManager {
 
@@ -27,6 +31,9 @@ public class InsertManager {
 
   private final GAENDataService dataService;
   private final ValidationUtils validationUtils;
+  private final UserAgentCache userAgentCache = new UserAgentCache(USER_AGENT_CACHE_SIZE);
+
+  private static final int USER_AGENT_CACHE_SIZE = 1000;
 
   private static final Logger logger = LoggerFactory.getLogger(InsertManager.class);
 
@@ -62,27 +69,32 @@ public class InsertManager {
     }
 
     var internalKeys = keys;
-    var headerParts = header.split(";");
-    if (headerParts.length != 5) {
-      headerParts =
-          List.of("org.example.dp3t", "1.0.0", "0", "Android", "29").toArray(new String[0]);
+    var userAgent = userAgentCache.get(header);
+    if (!userAgent.isValid()) {
       logger.error("We received an invalid header, setting default.");
     }
-
-    // Map the given headers to os type, os version and app version. Examples are:
-    // ch.admin.bag.dp36;1.0.7;200724.1105.215;iOS;13.6
-    // ch.admin.bag.dp3t.dev;1.0.7;1595591959493;Android;29
-    var osType = exctractOS(headerParts[3]);
-    var osVersion = extractOsVersion(headerParts[4]);
-    var appVersion = extractAppVersion(headerParts[1], headerParts[2]);
+    var osType = userAgent.getOsType();
+    var osVersion = userAgent.getOsVersion();
+    var appVersion = userAgent.getAppVersion();
 
     for (KeyInsertionModifier modifier : modifierList) {
       internalKeys = modifier.modify(now, internalKeys, osType, osVersion, appVersion, principal);
     }
 
+    // consecutive predicate filters are applied in a single pass over the keys
+    var predicates = new ArrayList<KeyPredicate>(filterList.size());
     for (KeyInsertionFilter filter : filterList) {
-      internalKeys = filter.filter(now, internalKeys, osType, osVersion, appVersion, principal);
+      if (filter instanceof KeyPredicateFilter) {
+        predicates.add(
+            ((KeyPredicateFilter) filter)
+                .forRequest(now, osType, osVersion, appVersion, principal));
+      } else {
+        internalKeys = KeyPredicateFilter.filterKeys(internalKeys, predicates);
+        predicates.clear();
+        internalKeys = filter.filter(now, internalKeys, osType, osVersion, appVersion, principal);
+      }
     }
+    internalKeys = KeyPredicateFilter.filterKeys(internalKeys, predicates);
 
     // if no keys remain or this is a fake request, just return. Else, insert the
     // remaining keys.
@@ -92,32 +104,4 @@ public class InsertManager {
       dataService.upsertExposees(internalKeys, now);
     }
   }
-
-  /**
-   * Extracts the {@link OSType} from the osString that is given by the client request.
-   *
-   * @param osString
-   * @return
-   */
-  private OSType exctractOS(String osString) {
-    var result = OSType.ANDROID;
-    switch (osString.toLowerCase()) {
-      case "ios":
-        result = OSType.IOS;
-        break;
-      case "android":
-        break;
-      default:
-        result = OSType.ANDROID;
-    }
-    return result;
-  }
-
-  private Version extractOsVersion(String osVersionString) {
-    return new Version(osVersionString);
-  }
-
-  private Version extractAppVersion(String osAppVersionString, String osMetaInfo) {
-    return new Version(osAppVersionString + "+" + osMetaInfo);
-  }
 }
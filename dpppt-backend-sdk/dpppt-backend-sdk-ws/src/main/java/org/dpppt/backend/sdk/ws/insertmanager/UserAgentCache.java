@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.insertmanager;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.dpppt.backend.sdk.semver.Version;
+
+/**
+ * Parses the User-Agent header of key uploads into {@link OSType}, os version and app version. Only
+ * a handful of different headers are sent by the released apps, so the most recently used headers
+ * are kept in a LRU cache of at most `maxEntries` entries. The cached entries are shared between
+ * requests, so every request gets its own copy of the mutable {@link Version}s.
+ */
+public class UserAgentCache {
+
+  private final Map<String, UserAgent> cache;
+
+  /** @param maxEntries maximum number of cached headers */
+  public UserAgentCache(int maxEntries) {
+    this.cache =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, UserAgent> eldest) {
+            return size() > maxEntries;
+          }
+        };
+  }
+
+  /**
+   * Returns the parsed header, parsing it only if it isn't cached.
+   *
+   * @param header the User-Agent header of the request
+   */
+  public UserAgent get(String header) {
+    synchronized (cache) {
+      var userAgent = cache.get(header);
+      if (userAgent != null) {
+        return userAgent;
+      }
+    }
+    var userAgent = parse(header);
+    synchronized (cache) {
+      cache.put(header, userAgent);
+    }
+    return userAgent;
+  }
+
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  // Map the given headers to os type, os version and app version. Examples are:
+  // ch.admin.bag.dp36;1.0.7;200724.1105.215;iOS;13.6
+  // ch.admin.bag.dp3t.dev;1.0.7;1595591959493;Android;29
+  static UserAgent parse(String header) {
+    var headerParts = header.split(";");
+    boolean valid = headerParts.length == 5;
+    if (!valid) {
+      headerParts =
+          List.of("org.example.dp3t", "1.0.0", "0", "Android", "29").toArray(new String[0]);
+    }
+    return new UserAgent(
+        extractOS(headerParts[3]),
+        new Version(headerParts[4]),
+        new Version(headerParts[1] + "+" + headerParts[2]),
+        valid);
+  }
+
+  /**
+   * Extracts the {@link OSType} from the osString that is given by the client request.
+   *
+   * @param osString
+   * @return
+   */
+  private static OSType extractOS(String osString) {
+    var result = OSType.ANDROID;
+    switch (osString.toLowerCase()) {
+      case "ios":
+        result = OSType.IOS;
+        break;
+      case "android":
+        break;
+      default:
+        result = OSType.ANDROID;
+    }
+    return result;
+  }
+
+  /** The parsed User-Agent header of a request. */
+  public static final class UserAgent {
+    private final OSType osType;
+    private final Version osVersion;
+    private final Version appVersion;
+    private final boolean valid;
+
+    UserAgent(OSType osType, Version osVersion, Version appVersion, boolean valid) {
+      this.osType = osType;
+      this.osVersion = osVersion;
+      this.appVersion = appVersion;
+      this.valid = valid;
+    }
+
+    public OSType getOsType() {
+      return osType;
+    }
+
+    /** @return a copy of the os version, which the caller may modify */
+    public Version getOsVersion() {
+      return copy(osVersion);
+    }
+
+    /** @return a copy of the app version, which the caller may modify */
+    public Version getAppVersion() {
+      return copy(appVersion);
+    }
+
+    /** @return false if the header couldn't be parsed and the default was used instead */
+    public boolean isValid() {
+      return valid;
+    }
+
+    private static Version copy(Version version) {
+      var copy =
+          new Version(
+              version.getMajor(),
+              version.getMinor(),
+              version.getPatch(),
+              version.getPreReleaseString(),
+              version.getMetaInfo());
+      copy.setPlatform(version.getPlatform());
+      return copy;
+    }
+  }
+}
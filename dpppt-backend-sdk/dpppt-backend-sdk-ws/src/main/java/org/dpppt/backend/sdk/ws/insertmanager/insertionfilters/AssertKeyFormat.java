@@ -11,6 +11,9 @@ import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 /**
  * Rejects a batch of keys if any of them have an invalid base64 encoding or doesn't have the
  * correct length. Invalid base64 encodings or wrong key lengths point to a client error.
+ *
+ * <p>This isn't a {@link KeyPredicateFilter} on purpose: fused with other predicates, a key dropped
+ * by an earlier one would never be checked, and the request wouldn't be rejected.
  */
 public class AssertKeyFormat implements KeyInsertionFilter {
 
@@ -30,8 +33,7 @@ public class AssertKeyFormat implements KeyInsertionFilter {
       Object principal)
       throws InsertException {
 
-    var hasInvalidKeys =
-        content.stream().anyMatch(key -> !validationUtils.isValidKeyFormat(key.getKeyData()));
+    var hasInvalidKeys = content.stream().anyMatch(key -> !validationUtils.isValidKeyFormat(key));
 
     if (hasInvalidKeys) {
       throw new KeyFormatException();
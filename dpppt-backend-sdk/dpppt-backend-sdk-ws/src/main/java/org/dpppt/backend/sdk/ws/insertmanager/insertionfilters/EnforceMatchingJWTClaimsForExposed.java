@@ -1,7 +1,5 @@
 package org.dpppt.backend.sdk.ws.insertmanager.insertionfilters;
 
-import java.util.List;
-import java.util.stream.Collectors;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
@@ -15,7 +13,7 @@ import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
  * token: the key dates must be >= the onset date, which was set by the health authority and is
  * available as a claim in the JWT
  */
-public class EnforceMatchingJWTClaimsForExposed implements KeyInsertionFilter {
+public class EnforceMatchingJWTClaimsForExposed implements KeyPredicateFilter {
 
   private final ValidateRequest validateRequest;
 
@@ -24,16 +22,9 @@ public class EnforceMatchingJWTClaimsForExposed implements KeyInsertionFilter {
   }
 
   @Override
-  public List<GaenKey> filter(
-      UTCInstant now,
-      List<GaenKey> content,
-      OSType osType,
-      Version osVersion,
-      Version appVersion,
-      Object principal) {
-    return content.stream()
-        .filter(key -> isValidKeyDate(key, principal, now))
-        .collect(Collectors.toList());
+  public KeyPredicate forRequest(
+      UTCInstant now, OSType osType, Version osVersion, Version appVersion, Object principal) {
+    return key -> isValidKeyDate(key, principal, now);
   }
 
   private boolean isValidKeyDate(GaenKey key, Object principal, UTCInstant now) {
@@ -1,9 +1,5 @@
 package org.dpppt.backend.sdk.ws.insertmanager.insertionfilters;
 
-import java.util.List;
-import java.util.stream.Collectors;
-import org.dpppt.backend.sdk.model.gaen.GaenKey;
-import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.insertmanager.OSType;
@@ -16,7 +12,7 @@ import org.dpppt.backend.sdk.ws.util.ValidationUtils.DelayedKeyDateIsInvalid;
  * in the JWT token: the supplied key must match `delayedKeyDate`, which has been set as a claim by
  * a previous call to `exposed`
  */
-public class EnforceMatchingJWTClaimsForExposedNextDay implements KeyInsertionFilter {
+public class EnforceMatchingJWTClaimsForExposedNextDay implements KeyPredicateFilter {
 
   private final ValidationUtils validationUtils;
 
@@ -25,29 +21,21 @@ public class EnforceMatchingJWTClaimsForExposedNextDay implements KeyInsertionFi
   }
 
   @Override
-  public List<GaenKey> filter(
-      UTCInstant now,
-      List<GaenKey> content,
-      OSType osType,
-      Version osVersion,
-      Version appVersion,
-      Object principal) {
-    return content.stream()
-        .filter(
-            key -> {
-              try {
-                // getDelayedKeyDateClaim throws an exception if there is no delayedKeyDate claim
-                // available.
-                var delayedKeyDateClaim = validationUtils.getDelayedKeyDateClaim(principal);
-                var delayedKeyDate =
-                    UTCInstant.of(key.getRollingStartNumber(), GaenUnit.TenMinutes);
-                return delayedKeyDateClaim.equals(delayedKeyDate)
-                    && isValidDelayedKeyDate(now, delayedKeyDate);
-              } catch (DelayedKeyDateClaimIsMissing ex) {
-                return false;
-              }
-            })
-        .collect(Collectors.toList());
+  public KeyPredicate forRequest(
+      UTCInstant now, OSType osType, Version osVersion, Version appVersion, Object principal) {
+    UTCInstant delayedKeyDateClaim;
+    try {
+      // getDelayedKeyDateClaim throws an exception if there is no delayedKeyDate claim available.
+      delayedKeyDateClaim = validationUtils.getDelayedKeyDateClaim(principal);
+    } catch (DelayedKeyDateClaimIsMissing ex) {
+      return key -> false;
+    }
+    // only keys matching the claim are accepted, so the claim can be checked instead of every key
+    if (!isValidDelayedKeyDate(now, delayedKeyDateClaim)) {
+      return key -> false;
+    }
+    long delayedKeyDate = delayedKeyDateClaim.get10MinutesSince1970();
+    return key -> key.getRollingStartNumber() == delayedKeyDate;
   }
 
   private boolean isValidDelayedKeyDate(UTCInstant now, UTCInstant delayedKeyDate) {
@@ -0,0 +1,89 @@
+package org.dpppt.backend.sdk.ws.insertmanager.insertionfilters;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.semver.Version;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.insertmanager.InsertException;
+import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
+import org.dpppt.backend.sdk.ws.insertmanager.OSType;
+
+/**
+ * A {@link KeyInsertionFilter} which decides for every key on its own. The {@link InsertManager}
+ * combines consecutive predicate filters into a single pass over the keys, instead of creating a
+ * new list for every filter.
+ */
+public interface KeyPredicateFilter extends KeyInsertionFilter {
+
+  /**
+   * Prepares the filter for the keys of one request. Checks concerning the whole request are done
+   * here, as well as everything which doesn't depend on the individual keys.
+   *
+   * @param now current timestamp
+   * @param osType the os type of the client which uploaded the keys
+   * @param osVersion the os version of the client which uploaded the keys
+   * @param appVersion the app version of the client which uploaded the keys
+   * @param principal the authorization context which belongs to the uploaded keys
+   * @return the predicate deciding which keys are kept
+   * @throws InsertException to reject the whole request
+   */
+  KeyPredicate forRequest(
+      UTCInstant now, OSType osType, Version osVersion, Version appVersion, Object principal)
+      throws InsertException;
+
+  @Override
+  default List<GaenKey> filter(
+      UTCInstant now,
+      List<GaenKey> content,
+      OSType osType,
+      Version osVersion,
+      Version appVersion,
+      Object principal)
+      throws InsertException {
+    return filterKeys(content, List.of(forRequest(now, osType, osVersion, appVersion, principal)));
+  }
+
+  /**
+   * Returns the keys accepted by all predicates, which are evaluated in the given order. If all
+   * keys are accepted, `keys` is returned without copying it.
+   *
+   * @throws InsertException if a predicate rejects the whole request
+   */
+  static List<GaenKey> filterKeys(List<GaenKey> keys, List<KeyPredicate> predicates)
+      throws InsertException {
+    if (predicates.isEmpty()) {
+      return keys;
+    }
+    List<GaenKey> accepted = null;
+    for (int i = 0; i < keys.size(); i++) {
+      GaenKey key = keys.get(i);
+      boolean keep = true;
+      for (int p = 0; p < predicates.size() && keep; p++) {
+        keep = predicates.get(p).test(key);
+      }
+      if (accepted != null) {
+        if (keep) {
+          accepted.add(key);
+        }
+      } else if (!keep) {
+        // first rejected key, copy the keys accepted so far
+        accepted = new ArrayList<>(keys.size());
+        accepted.addAll(keys.subList(0, i));
+      }
+    }
+    return accepted == null ? keys : accepted;
+  }
+
+  /** Decides whether a single key is kept. */
+  @FunctionalInterface
+  interface KeyPredicate {
+
+    /**
+     * @param key the key to check
+     * @return true if the key is kept
+     * @throws InsertException to reject the whole request
+     */
+    boolean test(GaenKey key) throws InsertException;
+  }
+}
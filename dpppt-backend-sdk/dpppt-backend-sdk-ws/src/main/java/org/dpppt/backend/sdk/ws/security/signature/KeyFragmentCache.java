@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+
+/**
+ * Holds the serialized `keys` field entry (tag, length and TemporaryExposureKey message) of every
+ * exported key. Since repeated protobuf fields can be concatenated byte-wise, an export is then
+ * assembled by copying these fragments, instead of decoding and encoding every key again for every
+ * export.
+ *
+ * <p>Fragments are looked up by the binary key data, which is unique in the database. The other
+ * fields are compared on every lookup, so a key that changed is encoded again. Once the cache holds
+ * `maxEntries` fragments it is cleared before the next insert. Keys leave the retention period
+ * after a few days, so this also drops the fragments that aren't exported anymore.
+ */
+public class KeyFragmentCache {
+
+  private static final int KEYS_FIELD_NUMBER = 7;
+
+  private final int maxEntries;
+  private final ConcurrentHashMap<ByteBuffer, KeyFragment> fragments = new ConcurrentHashMap<>();
+
+  /** @param maxEntries maximum number of cached fragments, 0 disables the cache */
+  public KeyFragmentCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Returns the serialized `keys` field entry of the given key, encoding it if it isn't cached yet.
+   *
+   * @param key the key to serialize
+   * @return tag, length and TemporaryExposureKey message of the key
+   */
+  public byte[] getFragment(GaenKey key) {
+    if (maxEntries <= 0) {
+      return encode(key);
+    }
+    // ByteBuffer compares the content of the array
+    var keyData = ByteBuffer.wrap(key.getKeyBytes());
+    KeyFragment fragment = fragments.get(keyData);
+    if (fragment == null || !fragment.matches(key)) {
+      if (fragments.size() >= maxEntries) {
+        fragments.clear();
+      }
+      fragment = new KeyFragment(key, encode(key));
+      fragments.put(keyData, fragment);
+    }
+    return fragment.bytes;
+  }
+
+  public int size() {
+    return fragments.size();
+  }
+
+  static byte[] encode(GaenKey key) {
+    byte[] keyData = key.getKeyBytes();
+    int messageSize =
+        CodedOutputStream.computeByteArraySize(1, keyData)
+            + CodedOutputStream.computeInt32Size(2, key.getTransmissionRiskLevel())
+            + CodedOutputStream.computeInt32Size(3, key.getRollingStartNumber())
+            + CodedOutputStream.computeInt32Size(4, key.getRollingPeriod());
+    byte[] fragment =
+        new byte
+            [CodedOutputStream.computeTagSize(KEYS_FIELD_NUMBER)
+                + CodedOutputStream.computeUInt32SizeNoTag(messageSize)
+                + messageSize];
+    var coded = CodedOutputStream.newInstance(fragment);
+    try {
+      coded.writeTag(KEYS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      coded.writeUInt32NoTag(messageSize);
+      coded.writeByteArray(1, keyData);
+      coded.writeInt32(2, key.getTransmissionRiskLevel());
+      coded.writeInt32(3, key.getRollingStartNumber());
+      coded.writeInt32(4, key.getRollingPeriod());
+      coded.checkNoSpaceLeft();
+    } catch (IOException e) {
+      // writing to a correctly sized array can't fail
+      throw new UncheckedIOException(e);
+    }
+    return fragment;
+  }
+
+  private static final class KeyFragment {
+    private final int rollingStartNumber;
+    private final int rollingPeriod;
+    private final int transmissionRiskLevel;
+    private final byte[] bytes;
+
+    KeyFragment(GaenKey key, byte[] bytes) {
+      this.rollingStartNumber = key.getRollingStartNumber();
+      this.rollingPeriod = key.getRollingPeriod();
+      this.transmissionRiskLevel = key.getTransmissionRiskLevel();
+      this.bytes = bytes;
+    }
+
+    boolean matches(GaenKey key) {
+      return rollingStartNumber == key.getRollingStartNumber()
+          && rollingPeriod == key.getRollingPeriod()
+          && transmissionRiskLevel == key.getTransmissionRiskLevel();
+    }
+  }
+}
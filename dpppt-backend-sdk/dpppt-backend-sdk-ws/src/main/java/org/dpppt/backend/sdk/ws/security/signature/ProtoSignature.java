@@ -10,8 +10,12 @@
 package org.dpppt.backend.sdk.ws.security.signature;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.MessageDigest;
@@ -21,13 +25,17 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
+import org.apache.commons.codec.binary.Hex;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat;
@@ -48,8 +56,18 @@ public class ProtoSignature {
   private final String keyVerificationId;
   private final String gaenRegion;
   private final Duration releaseBucketDuration;
+  private final KeyFragmentCache keyFragments;
+  private final int maxKeysPerBatch;
+  private final Executor signingExecutor;
+  private final SigningEngine signingEngine;
 
-  public Map<String, String> oidToJavaSignature = Map.of("1.2.840.10045.4.3.2", "SHA256withECDSA");
+  // initial buffer size of an export, so that most exports fit without growing the buffer
+  private static final int ESTIMATED_ZIP_OVERHEAD = 1024;
+  private static final int ESTIMATED_KEY_SIZE = 32;
+  private static final int CODED_BUFFER_SIZE = 4096;
+
+  public static final Map<String, String> oidToJavaSignature =
+      Map.of("1.2.840.10045.4.3.2", "SHA256withECDSA");
 
   public ProtoSignature(
       String algorithm,
@@ -59,7 +77,11 @@ public class ProtoSignature {
       String keyVersion,
       String keyVerificationId,
       String gaenRegion,
-      Duration releaseBucketDuration) {
+      Duration releaseBucketDuration,
+      KeyFragmentCache keyFragments,
+      int maxKeysPerBatch,
+      Executor signingExecutor,
+      SigningEngine signingEngine) {
     this.keyPair = keyPair;
     this.algorithm = algorithm.trim();
     this.appBundleId = appBundleId;
@@ -68,11 +90,20 @@ public class ProtoSignature {
     this.keyVersion = keyVersion;
     this.gaenRegion = gaenRegion;
     this.releaseBucketDuration = releaseBucketDuration;
+    this.keyFragments = keyFragments;
+    this.maxKeysPerBatch = maxKeysPerBatch;
+    this.signingExecutor = signingExecutor;
+    this.signingEngine = signingEngine;
   }
 
   /**
    * Creates a ZIP file containing the given keys and the corresponding signature.
    *
+   * <p>If there are more than `maxKeysPerBatch` keys, they are split into batches, which are signed
+   * in parallel on the signing executor. The result is then a ZIP file with one entry per batch,
+   * named `key_export_{keyDate}_{batchNum}`, each of which contains the export.bin and export.sig
+   * of that batch. Its hash is computed over the hashes of all batches.
+   *
    * @param keys
    * @return
    * @throws IOException
@@ -85,59 +116,179 @@ public class ProtoSignature {
     if (keys.isEmpty()) {
       throw new IOException("Keys should not be empty");
     }
-    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream byteOut =
+        new ByteArrayOutputStream(ESTIMATED_ZIP_OVERHEAD + keys.size() * ESTIMATED_KEY_SIZE);
+    var batches = splitIntoBatches(keys);
+    if (batches.size() == 1) {
+      byte[] hash = writePayload(keys, byteOut);
+      return new ProtoSignatureWrapper(hash, byteOut.toByteArray());
+    }
+    var keyDate =
+        UTCInstant.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes)
+            .getLocalDate()
+            .toString();
     ZipOutputStream zip = new ZipOutputStream(byteOut);
-    ByteArrayOutputStream hashOut = new ByteArrayOutputStream();
+    byte[] hash = writeBatches(keyDate, exportStart(keys), batches, zip);
+    zip.close();
+    return new ProtoSignatureWrapper(hash, byteOut.toByteArray());
+  }
+
+  /**
+   * Writes a ZIP file containing the given keys and the corresponding signature to the given
+   * stream. The keys are encoded directly into the ZIP entry, while the hash and the signature are
+   * computed on the fly, so no intermediate copies of the export are needed. The stream is not
+   * closed.
+   *
+   * @param keys the keys to export, must not be empty
+   * @param out the stream the ZIP file is written to
+   * @return the SHA-256 hash over export.bin and the public key
+   */
+  public byte[] writePayload(List<GaenKey> keys, OutputStream out)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    return writePayload(keys, exportStart(keys), 1, 1, out);
+  }
+
+  /**
+   * @return the start of the time window in the header of an export, which is the same for all of
+   *     its batches
+   */
+  private static Duration exportStart(List<GaenKey> keys) {
+    return Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
+  }
+
+  private byte[] writePayload(
+      List<GaenKey> keys, Duration start, int batchNum, int batchSize, OutputStream out)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
     var digest = MessageDigest.getInstance("SHA256");
-    var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
-    var protoFile = getProtoKey(keys, keyDate);
+    var signature = signingEngine.getSignature();
 
+    ZipOutputStream zip = new ZipOutputStream(out);
     zip.putNextEntry(new ZipEntry("export.bin"));
-    byte[] protoFileBytes = protoFile.toByteArray();
-    byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
-    System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
-    System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
-    zip.write(exportBin);
+    var exportBin = new SigningOutputStream(zip, digest, signature);
+    exportBin.write(EXPORT_MAGIC);
+    writeExport(keys, start, batchNum, batchSize, exportBin);
     zip.closeEntry();
 
-    var signatureList = getSignatureObject(exportBin);
-    digest.update(exportBin);
     digest.update(keyPair.getPublic().getEncoded());
-    hashOut.write(digest.digest());
+    byte[] hash = digest.digest();
 
-    byte[] exportSig = signatureList.toByteArray();
     zip.putNextEntry(new ZipEntry("export.sig"));
-    zip.write(exportSig);
+    getSignatureObject(signingEngine.sign(signature), batchNum, batchSize).writeTo(zip);
     zip.closeEntry();
+    zip.finish();
+    return hash;
+  }
 
-    zip.flush();
-    zip.close();
-    byteOut.flush();
-    byteOut.close();
-    hashOut.flush();
-    hashOut.close();
+  /**
+   * Encodes the TemporaryExposureKeyExport message for the given keys. The fields are written in
+   * the same order as the generated protobuf code would, so the output is byte-identical to
+   * `TemporaryExposureKeyExport.toByteArray()`. The repeated `keys` field is assembled from the
+   * pre-serialized fragments of the {@link KeyFragmentCache}.
+   *
+   * @param start start of the time window of the whole export, not only of this batch
+   */
+  private void writeExport(
+      List<GaenKey> keys, Duration start, int batchNum, int batchSize, OutputStream out)
+      throws IOException {
+    var coded = CodedOutputStream.newInstance(out, CODED_BUFFER_SIZE);
+    coded.writeFixed64(1, start.toSeconds());
+    coded.writeFixed64(2, start.toSeconds() + releaseBucketDuration.toSeconds());
+    coded.writeString(3, gaenRegion);
+    coded.writeInt32(4, batchNum);
+    coded.writeInt32(5, batchSize);
+    coded.writeMessage(6, tekSignature());
+    for (var key : keys) {
+      coded.writeRawBytes(keyFragments.getFragment(key));
+    }
+    coded.flush();
+  }
 
-    return new ProtoSignatureWrapper(hashOut.toByteArray(), byteOut.toByteArray());
+  /**
+   * Splits the keys into batches of at most `maxKeysPerBatch` keys. A `maxKeysPerBatch` of 0 means
+   * that all keys are put into a single batch.
+   */
+  private List<List<GaenKey>> splitIntoBatches(List<GaenKey> keys) {
+    if (maxKeysPerBatch <= 0 || keys.size() <= maxKeysPerBatch) {
+      return List.of(keys);
+    }
+    var batches = new ArrayList<List<GaenKey>>();
+    for (int from = 0; from < keys.size(); from += maxKeysPerBatch) {
+      batches.add(keys.subList(from, Math.min(keys.size(), from + maxKeysPerBatch)));
+    }
+    return batches;
   }
 
-  private byte[] sign(byte[] data)
-      throws SignatureException, InvalidKeyException, NoSuchAlgorithmException {
-    Signature signature = Signature.getInstance(oidToJavaSignature.get(algorithm));
-    signature.initSign(keyPair.getPrivate());
-    signature.update(data);
-    return signature.sign();
+  /**
+   * Signs all batches in parallel and writes them as separate entries into the given ZIP, in the
+   * order of their batch number.
+   *
+   * @return the SHA-256 hash over the hashes of all batches
+   */
+  private byte[] writeBatches(
+      String group, Duration start, List<List<GaenKey>> batches, ZipOutputStream zip)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var signedBatches = new ArrayList<CompletableFuture<ProtoSignatureWrapper>>();
+    for (int i = 0; i < batches.size(); i++) {
+      signedBatches.add(signBatchAsync(batches.get(i), start, i + 1, batches.size()));
+    }
+    var digest = MessageDigest.getInstance("SHA256");
+    for (int i = 0; i < signedBatches.size(); i++) {
+      var signedBatch = join(signedBatches.get(i));
+      zip.putNextEntry(new ZipEntry("key_export_" + group + "_" + (i + 1)));
+      zip.write(signedBatch.getZip());
+      zip.closeEntry();
+      digest.update(signedBatch.getHash());
+    }
+    return digest.digest();
+  }
+
+  private CompletableFuture<ProtoSignatureWrapper> signBatchAsync(
+      List<GaenKey> keys, Duration start, int batchNum, int batchSize) {
+    return CompletableFuture.supplyAsync(
+        () -> signBatch(keys, start, batchNum, batchSize), signingExecutor);
+  }
+
+  private ProtoSignatureWrapper signBatch(
+      List<GaenKey> keys, Duration start, int batchNum, int batchSize) {
+    try {
+      ByteArrayOutputStream byteOut =
+          new ByteArrayOutputStream(ESTIMATED_ZIP_OVERHEAD + keys.size() * ESTIMATED_KEY_SIZE);
+      byte[] hash = writePayload(keys, start, batchNum, batchSize, byteOut);
+      return new ProtoSignatureWrapper(hash, byteOut.toByteArray());
+    } catch (IOException | InvalidKeyException | SignatureException | NoSuchAlgorithmException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  /** Waits for the signed batch, rethrowing the checked exceptions of the signing. */
+  private static ProtoSignatureWrapper join(CompletableFuture<ProtoSignatureWrapper> signedBatch)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    try {
+      return signedBatch.join();
+    } catch (CompletionException e) {
+      var cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      } else if (cause instanceof SignatureException) {
+        throw (SignatureException) cause;
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      }
+      throw e;
+    }
   }
 
-  private TemporaryExposureKeyFormat.TEKSignatureList getSignatureObject(byte[] keyExport)
-      throws InvalidKeyException, SignatureException, NoSuchAlgorithmException {
-    byte[] exportSignature = sign(keyExport);
+  private TemporaryExposureKeyFormat.TEKSignatureList getSignatureObject(
+      byte[] exportSignature, int batchNum, int batchSize) {
     var signatureList = TemporaryExposureKeyFormat.TEKSignatureList.newBuilder();
     var theSignature = TemporaryExposureKeyFormat.TEKSignature.newBuilder();
     theSignature
         .setSignatureInfo(tekSignature())
         .setSignature(ByteString.copyFrom(exportSignature))
-        .setBatchNum(1)
-        .setBatchSize(1);
+        .setBatchNum(batchNum)
+        .setBatchSize(batchSize);
     signatureList.addSignatures(theSignature);
     return signatureList.build();
   }
@@ -156,11 +307,17 @@ public class ProtoSignature {
     return keyPair.getPublic();
   }
 
+  /**
+   * Creates a ZIP file with one `key_export_{group}` entry per group, each containing the signed
+   * export of that group. Groups above `maxKeysPerBatch` are split into `key_export_{group}_{n}`
+   * entries. All exports are built and signed in parallel on the signing executor, and then written
+   * in the iteration order of the map, so the output only depends on the input and not on the
+   * scheduling.
+   */
   public byte[] getPayload(Map<String, List<GaenKey>> groupedBuckets)
       throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
-    ByteArrayOutputStream byteOutCollection = new ByteArrayOutputStream();
-    ZipOutputStream zipCollection = new ZipOutputStream(byteOutCollection);
-
+    var zipFileNames = new ArrayList<String>();
+    var signedExports = new ArrayList<CompletableFuture<ProtoSignatureWrapper>>();
     for (var keyGroup : groupedBuckets.entrySet()) {
       var keys = keyGroup.getValue();
       var group = keyGroup.getKey();
@@ -168,36 +325,25 @@ public class ProtoSignature {
         continue;
       }
 
-      var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
-      var protoFile = getProtoKey(keys, keyDate);
-      var zipFileName = new StringBuilder();
-
-      zipFileName.append("key_export_").append(group);
-
-      zipCollection.putNextEntry(new ZipEntry(zipFileName.toString()));
-      ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-      ZipOutputStream zip = new ZipOutputStream(byteOut);
-
-      zip.putNextEntry(new ZipEntry("export.bin"));
-      byte[] protoFileBytes = protoFile.toByteArray();
-      byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
-      System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
-      System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
-      zip.write(exportBin);
-      zip.closeEntry();
-
-      var signatureList = getSignatureObject(exportBin);
-
-      byte[] exportSig = signatureList.toByteArray();
-      zip.putNextEntry(new ZipEntry("export.sig"));
-      zip.write(exportSig);
-      zip.closeEntry();
-      zip.flush();
-      zip.close();
-      byteOut.flush();
-      byteOut.close();
-      zipCollection.write(byteOut.toByteArray());
+      var batches = splitIntoBatches(keys);
+      var start = exportStart(keys);
+      for (int i = 0; i < batches.size(); i++) {
+        var zipFileName = new StringBuilder();
+        zipFileName.append("key_export_").append(group);
+        if (batches.size() > 1) {
+          zipFileName.append("_").append(i + 1);
+        }
+        zipFileNames.add(zipFileName.toString());
+        signedExports.add(signBatchAsync(batches.get(i), start, i + 1, batches.size()));
+      }
+    }
 
+    ByteArrayOutputStream byteOutCollection = new ByteArrayOutputStream();
+    ZipOutputStream zipCollection = new ZipOutputStream(byteOutCollection);
+    for (int i = 0; i < signedExports.size(); i++) {
+      var signedExport = join(signedExports.get(i));
+      zipCollection.putNextEntry(new ZipEntry(zipFileNames.get(i)));
+      zipCollection.write(signedExport.getZip());
       zipCollection.closeEntry();
     }
     zipCollection.flush();
@@ -206,6 +352,41 @@ public class ProtoSignature {
     return byteOutCollection.toByteArray();
   }
 
+  /**
+   * Combines already signed exports into one ZIP file, in the same format as {@link
+   * #getPayload(Map)}: an export of a single batch becomes the `key_export_{group}` entry, while
+   * the `key_export_{group}_{n}` entries of an export split into batches are copied as they are.
+   * Nothing is signed again.
+   *
+   * @param exports the signed exports per group, written in the iteration order of the map
+   * @return the ZIP file, whose hash is computed over the hashes of all exports
+   */
+  public ProtoSignatureWrapper getBundle(Map<String, ProtoSignatureWrapper> exports)
+      throws IOException, NoSuchAlgorithmException {
+    var digest = MessageDigest.getInstance("SHA256");
+    ByteArrayOutputStream byteOutCollection = new ByteArrayOutputStream();
+    ZipOutputStream zipCollection = new ZipOutputStream(byteOutCollection);
+    for (var export : exports.entrySet()) {
+      var zip = export.getValue().getZip();
+      var batches = new ZipInputStream(new ByteArrayInputStream(zip));
+      var entry = batches.getNextEntry();
+      if (entry != null && entry.getName().startsWith("key_export_")) {
+        for (; entry != null; entry = batches.getNextEntry()) {
+          zipCollection.putNextEntry(new ZipEntry(entry.getName()));
+          batches.transferTo(zipCollection);
+          zipCollection.closeEntry();
+        }
+      } else {
+        zipCollection.putNextEntry(new ZipEntry("key_export_" + export.getKey()));
+        zipCollection.write(zip);
+        zipCollection.closeEntry();
+      }
+      digest.update(export.getValue().getHash());
+    }
+    zipCollection.close();
+    return new ProtoSignatureWrapper(digest.digest(), byteOutCollection.toByteArray());
+  }
+
   public byte[] getPayload(Collection<List<GaenKey>> buckets)
       throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
     Map<String, List<GaenKey>> grouped = new HashMap<String, List<GaenKey>>();
@@ -220,36 +401,7 @@ public class ProtoSignature {
     return getPayload(grouped);
   }
 
-  private TemporaryExposureKeyFormat.TemporaryExposureKeyExport getProtoKey(
-      List<GaenKey> exposedKeys, Duration batchReleaseTimeDuration) {
-    var file = TemporaryExposureKeyFormat.TemporaryExposureKeyExport.newBuilder();
-
-    var tekList = new ArrayList<TemporaryExposureKeyFormat.TemporaryExposureKey>();
-    for (var key : exposedKeys) {
-      var protoKey =
-          TemporaryExposureKeyFormat.TemporaryExposureKey.newBuilder()
-              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
-              .setRollingPeriod(key.getRollingPeriod())
-              .setRollingStartIntervalNumber(key.getRollingStartNumber())
-              .setTransmissionRiskLevel(key.getTransmissionRiskLevel())
-              .build();
-      tekList.add(protoKey);
-    }
-
-    file.addAllKeys(tekList);
-
-    file.setRegion(gaenRegion)
-        .setBatchNum(1)
-        .setBatchSize(1)
-        .setStartTimestamp(batchReleaseTimeDuration.toSeconds())
-        .setEndTimestamp(batchReleaseTimeDuration.toSeconds() + releaseBucketDuration.toSeconds());
-
-    file.addSignatureInfos(tekSignature());
-
-    return file.build();
-  }
-
-  public class ProtoSignatureWrapper {
+  public static class ProtoSignatureWrapper {
     private final byte[] hash;
     private final byte[] zip;
 
@@ -265,5 +417,38 @@ public class ProtoSignature {
     public byte[] getZip() {
       return zip;
     }
+
+    /** @return a strong entity tag for this export, derived from its hash */
+    public String getEtag() {
+      return "\"" + Hex.encodeHexString(hash) + "\"";
+    }
+  }
+
+  /** Passes everything written through to the target, while feeding the digest and signature. */
+  private static class SigningOutputStream extends FilterOutputStream {
+    private final MessageDigest digest;
+    private final Signature signature;
+
+    SigningOutputStream(OutputStream out, MessageDigest digest, Signature signature) {
+      super(out);
+      this.digest = digest;
+      this.signature = signature;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      digest.update(b, off, len);
+      try {
+        signature.update(b, off, len);
+      } catch (SignatureException e) {
+        throw new IOException(e);
+      }
+      out.write(b, off, len);
+    }
   }
 }
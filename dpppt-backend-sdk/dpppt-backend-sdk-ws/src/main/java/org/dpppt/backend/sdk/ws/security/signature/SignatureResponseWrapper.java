@@ -10,14 +10,18 @@
 
 package org.dpppt.backend.sdk.ws.security.signature;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.util.Base64;
@@ -41,6 +45,8 @@ public class SignatureResponseWrapper extends HttpServletResponseWrapper {
   private final MessageDigest digest;
   private final ByteArrayOutputStream output;
   private final KeyPair pair;
+  private final SigningEngine signingEngine;
+  private final SignatureAlgorithm algorithm;
   private final List<String> protectedHeaders;
   private final boolean setDebugHeaders;
 
@@ -53,15 +59,19 @@ public class SignatureResponseWrapper extends HttpServletResponseWrapper {
   private static final String ISSUER_DP3T = "dp3t";
   private static final String CLAIM_HASH_ALG = "hash-alg";
   private static final String CLAIM_CONTENT_HASH = "content-hash";
+  private static final ObjectMapper CLAIMS_MAPPER = new ObjectMapper();
 
   public SignatureResponseWrapper(
       HttpServletResponse response,
       KeyPair pair,
+      SigningEngine signingEngine,
       int retentionDays,
       List<String> protectedHeaders,
       boolean setDebugHeaders) {
     super(response);
     this.pair = pair;
+    this.signingEngine = signingEngine;
+    this.algorithm = jwsAlgorithm(pair, signingEngine);
     this.protectedHeaders = protectedHeaders;
     this.setDebugHeaders = setDebugHeaders;
     try {
@@ -113,7 +123,7 @@ public class SignatureResponseWrapper extends HttpServletResponseWrapper {
 
   public void outputData(OutputStream httpOutput) throws IOException {
     this.setSignature();
-    httpOutput.write(this.output.toByteArray());
+    this.output.writeTo(httpOutput);
   }
 
   private void setSignature() throws IOException {
@@ -151,7 +161,7 @@ public class SignatureResponseWrapper extends HttpServletResponseWrapper {
         claims.setExpiration(issueDate.plusDays(retentionPeriod).getDate());
       }
     }
-    String signature = Jwts.builder().setClaims(claims).signWith(pair.getPrivate()).compact();
+    String signature = createJws(claims);
 
     if (this.setDebugHeaders) {
       this.setHeader(HEADER_DIGEST, "sha-256=" + Hex.encodeHexString(theHash));
@@ -160,6 +170,66 @@ public class SignatureResponseWrapper extends HttpServletResponseWrapper {
     this.setHeader(HEADER_SIGNATURE, signature);
   }
 
+  /**
+   * Returns the JWS algorithm `Jwts.builder().signWith(key)` would choose for the private key of
+   * `pair`.
+   *
+   * @throws IllegalArgumentException if the key isn't supported, or `signingEngine` doesn't
+   *     implement the algorithm
+   */
+  public static SignatureAlgorithm jwsAlgorithm(KeyPair pair, SigningEngine signingEngine) {
+    SignatureAlgorithm algorithm;
+    try {
+      algorithm = SignatureAlgorithm.forSigningKey(pair.getPrivate());
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Unsupported key for response signatures", e);
+    }
+    if (!algorithm.getJcaName().equals(signingEngine.getAlgorithm())) {
+      throw new IllegalArgumentException(
+          "The key requires "
+              + algorithm.getJcaName()
+              + ", but the signing engine uses "
+              + signingEngine.getAlgorithm());
+    }
+    return algorithm;
+  }
+
+  /**
+   * Creates a compact JWS of the claims. This is what `Jwts.builder().signWith(...)` does, but with
+   * the pooled `Signature` of the {@link SigningEngine} instead of a new one per response.
+   */
+  private String createJws(Claims claims) throws IOException {
+    var encoder = Base64.getUrlEncoder().withoutPadding();
+    String header = "{\"alg\":\"" + algorithm.getValue() + "\"}";
+    String signingInput =
+        encoder.encodeToString(header.getBytes(StandardCharsets.UTF_8))
+            + "."
+            + encoder.encodeToString(CLAIMS_MAPPER.writeValueAsBytes(claims));
+    try {
+      byte[] signature = signingEngine.sign(signingInput.getBytes(StandardCharsets.US_ASCII));
+      if (algorithm.isEllipticCurve()) {
+        signature = SigningEngine.derToConcat(signature, ecSignatureLength(algorithm));
+      }
+      return signingInput + "." + encoder.encodeToString(signature);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Could not sign the response", e);
+    }
+  }
+
+  /** @return the length of R and S of an ECDSA signature in JWS (RFC 7518, section 3.4) */
+  private static int ecSignatureLength(SignatureAlgorithm algorithm) {
+    switch (algorithm) {
+      case ES256:
+        return 64;
+      case ES384:
+        return 96;
+      case ES512:
+        return 132;
+      default:
+        throw new IllegalArgumentException("Not an ECDSA algorithm: " + algorithm);
+    }
+  }
+
   private String getPublicKeyAsPEM() throws IOException {
     StringWriter writer = new StringWriter();
     PemWriter pemWriter = new PemWriter(writer);
@@ -193,6 +263,12 @@ public class SignatureResponseWrapper extends HttpServletResponseWrapper {
       this.output.write(b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.digest.update(b, off, len);
+      this.output.write(b, off, len);
+    }
+
     @Override
     public void close() throws IOException {
       this.output.close();
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.atomic.LongAdder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Signs with a fixed key and algorithm, reusing one {@link Signature} object per thread. Looking up
+ * the provider and creating the {@link Signature} is the expensive part of {@link
+ * Signature#getInstance(String)}, while initializing an existing object only resets its state.
+ *
+ * <p>The JCA provider can be chosen explicitly, e.g. `SunEC` or `BC`. If it is empty, the first
+ * provider supporting the algorithm is used. The number of created signatures is exported as the
+ * `dp3t.signatures` counter, tagged with the name of the engine.
+ */
+public class SigningEngine implements MeterBinder {
+
+  private static final String BOUNCY_CASTLE = "BC";
+
+  private final String name;
+  private final String algorithm;
+  private final PrivateKey privateKey;
+  private final String provider;
+  private final ThreadLocal<Signature> signatures;
+  private final LongAdder signatureCount = new LongAdder();
+
+  /**
+   * @param name used to tell the engines apart in the metrics
+   * @param algorithm JCA name of the signature algorithm, e.g. `SHA256withECDSA`
+   * @param privateKey the key to sign with
+   * @param provider name of the JCA provider, or empty to use the default one
+   * @throws GeneralSecurityException if the algorithm, provider or key is not supported
+   */
+  public SigningEngine(String name, String algorithm, PrivateKey privateKey, String provider)
+      throws GeneralSecurityException {
+    this.name = name;
+    this.algorithm = algorithm;
+    this.privateKey = privateKey;
+    this.provider = provider == null ? "" : provider.trim();
+    if (BOUNCY_CASTLE.equals(this.provider) && Security.getProvider(BOUNCY_CASTLE) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+    // fail on startup if the configuration is invalid, instead of on the first request
+    newSignature().initSign(privateKey);
+    this.signatures =
+        ThreadLocal.withInitial(
+            () -> {
+              try {
+                return newSignature();
+              } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+  }
+
+  private Signature newSignature() throws GeneralSecurityException {
+    if (provider.isEmpty()) {
+      return Signature.getInstance(algorithm);
+    }
+    return Signature.getInstance(algorithm, provider);
+  }
+
+  /**
+   * Returns the {@link Signature} of the current thread, initialized for signing. Any data left
+   * over from a previous signing which was aborted is discarded. The returned object must not be
+   * shared with other threads and should be completed with {@link #sign(Signature)}.
+   */
+  public Signature getSignature() throws InvalidKeyException {
+    var signature = signatures.get();
+    signature.initSign(privateKey);
+    return signature;
+  }
+
+  /** Completes the signature over all data passed to `signature`. */
+  public byte[] sign(Signature signature) throws SignatureException {
+    byte[] result = signature.sign();
+    signatureCount.increment();
+    return result;
+  }
+
+  /** Signs the given data. */
+  public byte[] sign(byte[] data) throws InvalidKeyException, SignatureException {
+    var signature = getSignature();
+    signature.update(data);
+    return sign(signature);
+  }
+
+  /** @return the JCA name of the signature algorithm */
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  /** @return the name of the provider actually used */
+  public String getProviderName() {
+    return signatures.get().getProvider().getName();
+  }
+
+  public long getSignatureCount() {
+    return signatureCount.sum();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter.builder("dp3t.signatures", signatureCount, LongAdder::sum)
+        .description("Number of created signatures")
+        .tag("engine", name)
+        .register(registry);
+  }
+
+  /**
+   * Converts a DER encoded ECDSA signature, as created by the JCA, to the concatenated R and S
+   * values required by JWS (RFC 7518, section 3.4).
+   *
+   * @param der the DER encoded signature
+   * @param outputLength the length of the result, 64 for ES256
+   * @return R and S, each left-padded to half of `outputLength`
+   */
+  public static byte[] derToConcat(byte[] der, int outputLength) throws SignatureException {
+    if (der.length < 8 || der[0] != 0x30) {
+      throw new SignatureException("Invalid ECDSA signature format");
+    }
+    // the sequence length is encoded in one byte, or two for signatures longer than 127 bytes
+    int offset = der[1] > 0 ? 2 : 3;
+    byte[] result = new byte[outputLength];
+    int half = outputLength / 2;
+    for (int part = 0; part < 2; part++) {
+      if (offset + 2 > der.length || der[offset] != 0x02) {
+        throw new SignatureException("Invalid ECDSA signature format");
+      }
+      int length = der[offset + 1];
+      int start = offset + 2;
+      if (length < 0 || start + length > der.length) {
+        throw new SignatureException("Invalid ECDSA signature format");
+      }
+      // skip the leading zero bytes of the ASN.1 integer
+      int valueStart = start;
+      while (valueStart < start + length - 1 && der[valueStart] == 0) {
+        valueStart++;
+      }
+      int valueLength = start + length - valueStart;
+      if (valueLength > half) {
+        throw new SignatureException("Invalid ECDSA signature format");
+      }
+      System.arraycopy(der, valueStart, result, part * half + half - valueLength, valueLength);
+      offset = start + length;
+    }
+    return result;
+  }
+}
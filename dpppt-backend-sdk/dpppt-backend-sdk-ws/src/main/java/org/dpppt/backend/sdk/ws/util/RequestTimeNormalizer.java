@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.util;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.utils.DurationExpiredException;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Delays responses so that all requests changing the database take the same time, see {@link
+ * UTCInstant#normalizeDuration(Duration)}. Instead of sleeping, the response is returned as a
+ * {@link CompletableFuture} which is completed by a shared timer once the request time has passed.
+ * Spring MVC releases the servlet thread in the meantime, so waiting requests don't hold a thread.
+ */
+public class RequestTimeNormalizer {
+  private static final Logger logger = LoggerFactory.getLogger(RequestTimeNormalizer.class);
+
+  private final ScheduledThreadPoolExecutor timer;
+
+  /**
+   * @param threads number of timer threads. They only complete futures, so one is usually enough.
+   */
+  public RequestTimeNormalizer(int threads) {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("request-time-");
+    threadFactory.setDaemon(true);
+    this.timer = new ScheduledThreadPoolExecutor(Math.max(threads, 1), threadFactory);
+    this.timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Returns a future which completes with `result` once `requestTime` has passed since `start`. If
+   * the request already took longer, the future is completed immediately.
+   *
+   * @param start the time the request was received
+   * @param requestTime how long the total duration should be
+   * @param result the response to return
+   */
+  public <T> CompletableFuture<T> normalize(UTCInstant start, Duration requestTime, T result) {
+    Duration remaining;
+    try {
+      remaining = start.remainingDuration(requestTime);
+    } catch (DurationExpiredException e) {
+      logger.error("Total time spent in endpoint is longer than requestTime");
+      return CompletableFuture.completedFuture(result);
+    }
+    CompletableFuture<T> future = new CompletableFuture<>();
+    timer.schedule(() -> future.complete(result), remaining.toMillis(), TimeUnit.MILLISECONDS);
+    return future;
+  }
+
+  /** Stops the timer. Pending responses are still completed. */
+  public void shutdown() {
+    timer.shutdown();
+  }
+}
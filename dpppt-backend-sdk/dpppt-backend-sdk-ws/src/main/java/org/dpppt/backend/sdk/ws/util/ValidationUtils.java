@@ -11,6 +11,7 @@ package org.dpppt.backend.sdk.ws.util;
 
 import java.time.Duration;
 import java.util.Base64;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.springframework.security.oauth2.jwt.Jwt;
@@ -35,6 +36,17 @@ public class ValidationUtils {
     this.releaseBucketDuration = releaseBucketDuration;
   }
 
+  /**
+   * Check the validity of a key by checking the length of its decoded key data
+   *
+   * @param key the key to check
+   * @return if the key data is valid base64 and has the correct length
+   */
+  public boolean isValidKeyFormat(GaenKey key) {
+    byte[] keyBytes = key.getKeyBytes();
+    return keyBytes != null && keyBytes.length == KEY_LENGTH_BYTES;
+  }
+
   /**
    * Check the validity of a base64 encoded key by decoding it and checking the key length
    *
@@ -72,6 +84,17 @@ public class ValidationUtils {
     return timestamp.isBeforeDateOf(now.minus(retentionPeriod));
   }
 
+  /**
+   * Returns the start of the first day of the retention period. A timestamp is before the retention
+   * period if and only if it is before this instant.
+   *
+   * @param now current timestamp
+   * @return midnight UTC of the day of now - retentionPeriod
+   */
+  public UTCInstant getRetentionStart(UTCInstant now) {
+    return now.minus(retentionPeriod).atStartOfDay();
+  }
+
   /**
    * Check if the given timestamp is a valid key date: Must be midnight UTC.
    *
@@ -57,6 +57,7 @@ import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 @ActiveProfiles({"actuator-security"})
@@ -1311,8 +1312,8 @@ public class GaenControllerTest extends BaseControllerTest {
             .getResponse();
   }
 
-  // @Test
-  // @Transactional(transactionManager = "testTransactionManager")
+  @Test
+  @Transactional(transactionManager = "testTransactionManager")
   public void testEtag() throws Exception {
     var now = UTCInstant.now();
     var midnight = now.atStartOfDay();
@@ -1363,6 +1364,113 @@ public class GaenControllerTest extends BaseControllerTest {
     assertNotEquals(expectedEtag, response.getHeader("etag"));
   }
 
+  @Test
+  @Transactional(transactionManager = "testTransactionManager")
+  public void testIfNoneMatchReturnsNotModified() throws Exception {
+    var now = UTCInstant.now();
+    var midnight = now.atStartOfDay();
+
+    insertNKeysPerDay(midnight, 14, 10, midnight.minusDays(1), false);
+
+    MockHttpServletResponse response =
+        mockMvc
+            .perform(
+                get("/v1/gaen/exposed/" + midnight.minusDays(8).getTimestamp())
+                    .header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+    var etag = response.getHeader("ETag");
+    assertNotNull(etag);
+    var publishedUntil = response.getHeader("X-PUBLISHED-UNTIL");
+
+    response =
+        mockMvc
+            .perform(
+                get("/v1/gaen/exposed/" + midnight.minusDays(8).getTimestamp())
+                    .header("User-Agent", androidUserAgent)
+                    .header("If-None-Match", etag))
+            .andExpect(status().isNotModified())
+            .andReturn()
+            .getResponse();
+    assertEquals(0, response.getContentAsByteArray().length);
+    assertEquals(etag, response.getHeader("ETag"));
+    assertEquals(publishedUntil, response.getHeader("X-PUBLISHED-UNTIL"));
+    assertNotNull(response.getHeader("Cache-Control"));
+
+    mockMvc
+        .perform(
+            get("/v1/gaen/exposed/" + midnight.minusDays(8).getTimestamp())
+                .header("User-Agent", androidUserAgent)
+                .header("If-None-Match", "\"outdated\""))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  // the keys of the days are loaded on other threads, so they must be committed
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public void testExposedBundle() throws Exception {
+    var midnight = UTCInstant.now().atStartOfDay();
+    var receivedAt = midnight.minusDays(1).plus(Duration.ofMinutes(7));
+    insertNKeysPerDay(midnight, 14, 10, receivedAt, false);
+    try {
+      MockHttpServletResponse response =
+          mockMvc
+              .perform(
+                  get("/v1/gaen/exposedbundle")
+                      .param("from", Long.toString(midnight.minusDays(10).getTimestamp()))
+                      .header("User-Agent", androidUserAgent))
+              .andExpect(status().isOk())
+              .andReturn()
+              .getResponse();
+      assertNotNull(response.getHeader("X-PUBLISHED-UNTIL"));
+
+      var entries = new ArrayList<String>();
+      try (var zip =
+          new ZipInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))) {
+        for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+          entries.add(entry.getName());
+          // days which already left the time skew contain the 10 keys and 10 fake keys
+          var keyDate = UTCInstant.parseDate(entry.getName().substring("key_export_".length()));
+          if (keyDate.isBeforeEpochMillisOf(midnight.minusDays(1))) {
+            verifyKeyZip(new ZipInputStream(new ByteArrayInputStream(zip.readAllBytes())), 20, 144);
+          }
+        }
+      }
+      // all days are included, in chronological order
+      assertEquals("key_export_" + midnight.minusDays(10).getLocalDate(), entries.get(0));
+      for (int day = 9; day >= 2; day--) {
+        assertTrue(entries.contains("key_export_" + midnight.minusDays(day).getLocalDate()));
+      }
+
+      // the bundle is served from the cache until the next bucket
+      var etag = response.getHeader("ETag");
+      assertNotNull(etag);
+      mockMvc
+          .perform(
+              get("/v1/gaen/exposedbundle")
+                  .param("from", Long.toString(midnight.minusDays(10).getTimestamp()))
+                  .header("User-Agent", androidUserAgent)
+                  .header("If-None-Match", etag))
+          .andExpect(status().isNotModified());
+
+      mockMvc
+          .perform(
+              get("/v1/gaen/exposedbundle")
+                  .param("from", Long.toString(midnight.minusDays(10).plusHours(1).getTimestamp()))
+                  .header("User-Agent", androidUserAgent))
+          .andExpect(status().isNotFound());
+      mockMvc
+          .perform(
+              get("/v1/gaen/exposedbundle")
+                  .param("from", Long.toString(midnight.minusDays(30).getTimestamp()))
+                  .header("User-Agent", androidUserAgent))
+          .andExpect(status().isNotFound());
+    } finally {
+      testGaenDataService.deleteExposeesReceivedAt(receivedAt);
+    }
+  }
+
   @Test
   public void testMalciousTokenFails() throws Exception {
     var requestList = new GaenRequest();
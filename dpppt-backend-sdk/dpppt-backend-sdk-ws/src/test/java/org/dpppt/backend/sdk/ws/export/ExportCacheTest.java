@@ -0,0 +1,110 @@
+package org.dpppt.backend.sdk.ws.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.time.Duration;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Test;
+
+public class ExportCacheTest {
+
+  private static final UTCInstant KEY_DATE = UTCInstant.parseDate("2020-10-01");
+  private static final UTCInstant BUCKET = KEY_DATE.plusDays(2);
+
+  private static ProtoSignatureWrapper export(int size) {
+    return new ProtoSignatureWrapper(new byte[32], new byte[size]);
+  }
+
+  @Test
+  public void testDisabled() {
+    var cache = new ExportCache(0, 100);
+    cache.put(KEY_DATE, null, BUCKET, export(10));
+    assertNull(cache.get(KEY_DATE, null, BUCKET));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testHitPerPublishedAfter() {
+    var cache = new ExportCache(1000, 100);
+    var withoutAfter = export(10);
+    var withAfter = export(20);
+    var publishedAfter = BUCKET.minus(Duration.ofHours(2));
+    cache.put(KEY_DATE, null, BUCKET, withoutAfter);
+    cache.put(KEY_DATE, publishedAfter, BUCKET, withAfter);
+
+    assertSame(withoutAfter, cache.get(KEY_DATE, null, BUCKET));
+    assertSame(withAfter, cache.get(KEY_DATE, publishedAfter, BUCKET));
+    assertNull(cache.get(KEY_DATE.plusDays(1), null, BUCKET));
+    assertEquals(30, cache.getCurrentBytes());
+  }
+
+  @Test
+  public void testNewBucketDropsOldEntries() {
+    var cache = new ExportCache(1000, 100);
+    var nextBucket = BUCKET.plus(Duration.ofHours(2));
+    cache.put(KEY_DATE, null, BUCKET, export(10));
+    assertNull(cache.get(KEY_DATE, null, nextBucket));
+    assertEquals(0, cache.size());
+
+    // late writers of the previous bucket must not repopulate the cache
+    cache.put(KEY_DATE, null, BUCKET, export(10));
+    assertNull(cache.get(KEY_DATE, null, BUCKET));
+    assertEquals(0, cache.getCurrentBytes());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    var cache = new ExportCache(100, 100);
+    var first = export(40);
+    var second = export(40);
+    cache.put(KEY_DATE, null, BUCKET, first);
+    cache.put(KEY_DATE.plusDays(1), null, BUCKET, second);
+    // touch the first entry, so the second one is evicted
+    assertSame(first, cache.get(KEY_DATE, null, BUCKET));
+    cache.put(KEY_DATE.minusDays(1), null, BUCKET, export(40));
+
+    assertSame(first, cache.get(KEY_DATE, null, BUCKET));
+    assertNull(cache.get(KEY_DATE.plusDays(1), null, BUCKET));
+    assertEquals(80, cache.getCurrentBytes());
+
+    // entries larger than the whole cache are never stored
+    cache.put(KEY_DATE.plusDays(2), null, BUCKET, export(101));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testBundlesAreSeparateFromExports() {
+    var cache = new ExportCache(1000, 100);
+    var export = export(10);
+    var bundle = new ProtoSignatureWrapper(new byte[] {1}, new byte[20]);
+    cache.put(KEY_DATE, null, BUCKET, export);
+    cache.putBundle(KEY_DATE, null, BUCKET, bundle);
+
+    assertSame(export, cache.get(KEY_DATE, null, BUCKET));
+    assertSame(bundle, cache.getBundle(KEY_DATE, null, BUCKET));
+    assertEquals(bundle.getEtag(), cache.getBundleEtag(KEY_DATE, null, BUCKET));
+    assertNull(cache.getBundle(KEY_DATE.plusDays(1), null, BUCKET));
+    assertEquals(30, cache.getCurrentBytes());
+  }
+
+  @Test
+  public void testEtagIndexWithoutZipCache() {
+    var cache = new ExportCache(0, 2);
+    var export = new ProtoSignatureWrapper(new byte[] {0x0a, (byte) 0xff}, new byte[10]);
+    cache.put(KEY_DATE, null, BUCKET, export);
+    assertNull(cache.get(KEY_DATE, null, BUCKET));
+    assertEquals("\"0aff\"", cache.getEtag(KEY_DATE, null, BUCKET));
+
+    // the index is bounded by the number of entries
+    cache.put(KEY_DATE.plusDays(1), null, BUCKET, export(10));
+    cache.put(KEY_DATE.plusDays(2), null, BUCKET, export(10));
+    assertNull(cache.getEtag(KEY_DATE, null, BUCKET));
+
+    // and dropped with the bucket
+    assertNull(cache.getEtag(KEY_DATE.plusDays(1), null, BUCKET.plus(Duration.ofHours(2))));
+    assertNull(cache.getEtag(KEY_DATE.plusDays(1), null, BUCKET));
+  }
+}
@@ -0,0 +1,122 @@
+package org.dpppt.backend.sdk.ws.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
+import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.KeyFragmentCache;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.security.signature.SigningEngine;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExportPreGeneratorTest {
+
+  private static final Duration BUCKET = Duration.ofHours(2);
+  private static final Duration RETENTION = Duration.ofDays(2);
+  private static final UTCInstant NOW = UTCInstant.parseDateTime("2020-10-15T10:30:00");
+
+  private final AtomicInteger queries = new AtomicInteger();
+  private ExportBuilder exportBuilder;
+
+  @Before
+  public void setUp() throws Exception {
+    GAENDataService dataService =
+        new GAENDataService() {
+          @Override
+          public void upsertExposees(List<GaenKey> keys, UTCInstant now) {}
+
+          @Override
+          public void upsertExposeesDelayed(
+              List<GaenKey> keys, UTCInstant delayedReceivedAt, UTCInstant now) {}
+
+          @Override
+          public List<GaenKey> getSortedExposedForKeyDate(
+              UTCInstant keyDate,
+              UTCInstant publishedAfter,
+              UTCInstant publishedUntil,
+              UTCInstant now) {
+            queries.incrementAndGet();
+            var keys = new ArrayList<GaenKey>();
+            keys.add(
+                new GaenKey(
+                    "MTIzNDU2Nzg5MDEyMzQ1Ng==", (int) keyDate.get10MinutesSince1970(), 144, 0));
+            return keys;
+          }
+
+          @Override
+          public void cleanDB(Duration retentionPeriod) {}
+        };
+    var generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    var keyPair = generator.generateKeyPair();
+    var signer =
+        new ProtoSignature(
+            "1.2.840.10045.4.3.2",
+            keyPair,
+            "org.dpppt.test",
+            "org.dpppt.test",
+            "v1",
+            "228",
+            "ch",
+            BUCKET,
+            new KeyFragmentCache(1000),
+            0,
+            Runnable::run,
+            new SigningEngine("test", "SHA256withECDSA", keyPair.getPrivate(), ""));
+    exportBuilder =
+        new ExportBuilder(
+            dataService,
+            new FakeKeyService(null, 10, 16, RETENTION, BUCKET, Duration.ofHours(2), false),
+            signer,
+            new ExportCache(Long.MAX_VALUE, 100),
+            Runnable::run);
+  }
+
+  @Test
+  public void testPublishedAfters() {
+    var preGenerator = new ExportPreGenerator(exportBuilder, Runnable::run, BUCKET, RETENTION);
+    var publishedAfters = preGenerator.getPublishedAfters(NOW);
+    // no publishedAfter, plus 10:00 on the 15th back to 12:00 on the 13th
+    assertEquals(1 + 24, publishedAfters.size());
+    assertNull(publishedAfters.get(0));
+    assertEquals(
+        UTCInstant.parseDateTime("2020-10-15T10:00:00").getTimestamp(),
+        publishedAfters.get(1).getTimestamp());
+    assertEquals(
+        UTCInstant.parseDateTime("2020-10-13T12:00:00").getTimestamp(),
+        publishedAfters.get(24).getTimestamp());
+  }
+
+  @Test
+  public void testGenerateFillsCache() throws Exception {
+    var preGenerator = new ExportPreGenerator(exportBuilder, Runnable::run, BUCKET, RETENTION);
+    var statistics = preGenerator.generate(NOW);
+
+    // three key dates (13th, 14th, 15th) with 25 publishedAfter values each
+    assertEquals(3 * 25, statistics.getArtifacts());
+    assertEquals(0, statistics.getFailures());
+    assertEquals(3 * 25, exportBuilder.getExportCache().size());
+    assertEquals(exportBuilder.getExportCache().getCurrentBytes(), statistics.getBytes());
+    assertSame(statistics, preGenerator.getLastRun());
+
+    int queriesBefore = queries.get();
+    var publishedUntil = NOW.roundToBucketStart(BUCKET);
+    var export =
+        exportBuilder.getExport(
+            UTCInstant.parseDate("2020-10-14"), null, publishedUntil, NOW.plusMinutes(5));
+    assertNotNull(export);
+    assertEquals(queriesBefore, queries.get());
+  }
+}
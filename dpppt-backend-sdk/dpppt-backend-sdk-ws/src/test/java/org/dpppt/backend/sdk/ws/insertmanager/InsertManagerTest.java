@@ -2,6 +2,9 @@ package org.dpppt.backend.sdk.ws.insertmanager;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
@@ -10,9 +13,18 @@ import ch.qos.logback.core.AppenderBase;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat.KeyFormatException;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.EnforceRetentionPeriod;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.EnforceValidRollingPeriod;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.KeyPredicateFilter;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.KeyPredicateFilter.KeyPredicate;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.RemoveKeysFromFuture;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionmodifier.OldAndroid0RPModifier;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.junit.Test;
@@ -118,6 +130,94 @@ public class InsertManagerTest {
     }
   }
 
+  @Test
+  public void fusedFiltersMatchSeparateFilters() throws Exception {
+    var validationUtils =
+        new ValidationUtils(16, Duration.ofDays(14), Duration.ofHours(2).toMillis());
+    var now = UTCInstant.now();
+    var keys = new ArrayList<GaenKey>();
+    for (var keyDate = now.minusDays(20); keyDate.isBeforeEpochMillisOf(now.plusDays(4)); ) {
+      for (int rollingPeriod : new int[] {0, 1, 144, 145}) {
+        var key =
+            new GaenKey(
+                "AAAAAAAAAAAAAAAAAAAAAA==",
+                (int) keyDate.get10MinutesSince1970(),
+                rollingPeriod,
+                0);
+        key.setFake(keys.size() % 7 == 0 ? 1 : 0);
+        keys.add(key);
+      }
+      keyDate = keyDate.plusMinutes(170);
+    }
+    // the filters as they were implemented before predicates were introduced
+    var expected = new ArrayList<GaenKey>();
+    for (var key : keys) {
+      var keyDate = UTCInstant.of(key.getRollingStartNumber(), GaenUnit.TenMinutes);
+      if (keyDate.isBeforeDateOf(now.plusDays(2))
+          && !validationUtils.isBeforeRetention(keyDate, now)
+          && key.getFake().equals(0)
+          && key.getRollingPeriod() >= 1
+          && key.getRollingPeriod() <= 144) {
+        expected.add(key);
+      }
+    }
+
+    var dataSource = new RecordingDataSource();
+    var manager = new InsertManager(dataSource, validationUtils);
+    manager.addFilter(new AssertKeyFormat(validationUtils));
+    manager.addFilter(new RemoveKeysFromFuture());
+    manager.addFilter(new EnforceRetentionPeriod(validationUtils));
+    // filters which only implement KeyInsertionFilter are applied in between
+    manager.addFilter(
+        (filterNow, content, osType, osVersion, appVersion, principal) ->
+            content.stream().filter(key -> key.getFake().equals(0)).collect(Collectors.toList()));
+    manager.addFilter(new EnforceValidRollingPeriod());
+    manager.insertIntoDatabase(keys, "org.dpppt.testrunner;1.0.0;1;iOS;29", null, now);
+
+    assertEquals(expected, dataSource.inserted);
+    assertTrue(expected.size() > 0 && expected.size() < keys.size());
+
+    // invalid keys still abort the whole request
+    var invalid = new ArrayList<>(keys);
+    invalid.add(new GaenKey("tooShort", (int) now.get10MinutesSince1970(), 144, 0));
+    assertThrows(
+        KeyFormatException.class,
+        () ->
+            manager.insertIntoDatabase(invalid, "org.dpppt.testrunner;1.0.0;1;iOS;29", null, now));
+
+    // even if they would have been removed by another filter
+    var invalidFromFuture = new ArrayList<>(keys);
+    invalidFromFuture.add(
+        new GaenKey("tooShort", (int) now.plusDays(3).get10MinutesSince1970(), 144, 0));
+    assertThrows(
+        KeyFormatException.class,
+        () ->
+            manager.insertIntoDatabase(
+                invalidFromFuture, "org.dpppt.testrunner;1.0.0;1;iOS;29", null, now));
+  }
+
+  @Test
+  public void listIsNotCopiedIfAllKeysAreKept() throws Exception {
+    var key =
+        new GaenKey(
+            "AAAAAAAAAAAAAAAAAAAAAA==", (int) UTCInstant.now().get10MinutesSince1970(), 144, 0);
+    var keys = List.of(key, key);
+    var predicates =
+        List.<KeyPredicate>of(k -> k.getRollingPeriod() == 144, k -> k.getFake().equals(0));
+    assertSame(keys, KeyPredicateFilter.filterKeys(keys, predicates));
+    assertEquals(
+        List.of(), KeyPredicateFilter.filterKeys(keys, List.of(k -> k.getFake().equals(1))));
+  }
+
+  class RecordingDataSource extends MockDataSource {
+    private List<GaenKey> inserted;
+
+    @Override
+    public void upsertExposees(List<GaenKey> keys, UTCInstant now) {
+      inserted = keys;
+    }
+  }
+
   class TestAppender extends AppenderBase<ILoggingEvent> {
     private final List<ILoggingEvent> log = new ArrayList<ILoggingEvent>();
 
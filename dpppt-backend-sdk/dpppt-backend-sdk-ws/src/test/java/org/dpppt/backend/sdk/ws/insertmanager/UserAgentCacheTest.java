@@ -0,0 +1,60 @@
+package org.dpppt.backend.sdk.ws.insertmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class UserAgentCacheTest {
+
+  @Test
+  public void headersAreParsedOnce() {
+    var cache = new UserAgentCache(10);
+    var ios = cache.get("ch.admin.bag.dp36;1.0.7;200724.1105.215;iOS;13.6");
+    assertTrue(ios.isValid());
+    assertEquals(OSType.IOS, ios.getOsType());
+    assertEquals("13.6.0", ios.getOsVersion().toString());
+    assertEquals("1.0.7+200724.1105.215", ios.getAppVersion().toString());
+    assertSame(ios, cache.get("ch.admin.bag.dp36;1.0.7;200724.1105.215;iOS;13.6"));
+
+    var android = cache.get("ch.admin.bag.dp3t.dev;1.0.7;1595591959493;Android;29");
+    assertEquals(OSType.ANDROID, android.getOsType());
+    assertEquals("29.0.0", android.getOsVersion().toString());
+
+    var invalid = cache.get("test");
+    assertFalse(invalid.isValid());
+    assertEquals(OSType.ANDROID, invalid.getOsType());
+    assertEquals("29.0.0", invalid.getOsVersion().toString());
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void cachedVersionsCannotBeModified() {
+    var cache = new UserAgentCache(10);
+    var header = "ch.admin.bag.dp36;1.0.7;200724.1105.215;iOS;13.6";
+    var osVersion = cache.get(header).getOsVersion();
+    osVersion.setMajor(14);
+    var appVersion = cache.get(header).getAppVersion();
+    appVersion.setMetaInfo("");
+    assertEquals("13.6.0", cache.get(header).getOsVersion().toString());
+    assertEquals("1.0.7+200724.1105.215", cache.get(header).getAppVersion().toString());
+  }
+
+  @Test
+  public void leastRecentlyUsedHeadersAreEvicted() {
+    var cache = new UserAgentCache(2);
+    var first = cache.get("org.dpppt.testrunner;1.0.0;1;iOS;13");
+    var second = cache.get("org.dpppt.testrunner;1.0.0;2;iOS;13");
+    // make the first header the most recently used one
+    assertSame(first, cache.get("org.dpppt.testrunner;1.0.0;1;iOS;13"));
+    var third = cache.get("org.dpppt.testrunner;1.0.0;3;iOS;13");
+    assertEquals(2, cache.size());
+    assertSame(first, cache.get("org.dpppt.testrunner;1.0.0;1;iOS;13"));
+    assertSame(third, cache.get("org.dpppt.testrunner;1.0.0;3;iOS;13"));
+    // the second header was evicted and is parsed again
+    assertNotSame(second, cache.get("org.dpppt.testrunner;1.0.0;2;iOS;13"));
+  }
+}
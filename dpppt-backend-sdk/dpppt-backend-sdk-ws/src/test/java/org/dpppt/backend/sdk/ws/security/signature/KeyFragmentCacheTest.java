@@ -0,0 +1,52 @@
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.protobuf.ByteString;
+import java.util.Base64;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat;
+import org.junit.Test;
+
+public class KeyFragmentCacheTest {
+
+  private static final String KEY_DATA = "MTIzNDU2Nzg5MDEyMzQ1Ng==";
+
+  @Test
+  public void testFragmentIsKeysFieldEntry() {
+    var key = new GaenKey(KEY_DATA, 2665872, 144, 3);
+    var fragment = new KeyFragmentCache(10).getFragment(key);
+
+    var expected =
+        TemporaryExposureKeyFormat.TemporaryExposureKeyExport.newBuilder()
+            .addKeys(
+                TemporaryExposureKeyFormat.TemporaryExposureKey.newBuilder()
+                    .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(KEY_DATA)))
+                    .setRollingPeriod(144)
+                    .setRollingStartIntervalNumber(2665872)
+                    .setTransmissionRiskLevel(3))
+            .build()
+            .toByteArray();
+    assertArrayEquals(expected, fragment);
+  }
+
+  @Test
+  public void testFragmentsAreReused() {
+    var cache = new KeyFragmentCache(2);
+    var fragment = cache.getFragment(new GaenKey(KEY_DATA, 2665872, 144, 0));
+    assertSame(fragment, cache.getFragment(new GaenKey(KEY_DATA, 2665872, 144, 0)));
+
+    // a key with the same data but different fields is encoded again
+    assertNotSame(fragment, cache.getFragment(new GaenKey(KEY_DATA, 2665872, 100, 0)));
+    assertEquals(1, cache.size());
+
+    // the cache is bounded
+    cache.getFragment(new GaenKey("MTIzNDU2Nzg5MDEyMzQ1Nw==", 2665872, 144, 0));
+    assertEquals(2, cache.size());
+    cache.getFragment(new GaenKey("MTIzNDU2Nzg5MDEyMzQ1OA==", 2665872, 144, 0));
+    assertEquals(1, cache.size());
+  }
+}
@@ -0,0 +1,250 @@
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipInputStream;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
+import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProtoSignatureTest {
+
+  private static final byte[] EXPORT_MAGIC = "EK Export v1    ".getBytes();
+
+  private KeyPair keyPair;
+  private ProtoSignature signer;
+
+  @Before
+  public void setUp() throws Exception {
+    var generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    keyPair = generator.generateKeyPair();
+    signer = createSigner(0);
+  }
+
+  private ProtoSignature createSigner(int maxKeysPerBatch) throws GeneralSecurityException {
+    return createSigner(maxKeysPerBatch, ForkJoinPool.commonPool());
+  }
+
+  private ProtoSignature createSigner(int maxKeysPerBatch, Executor signingExecutor)
+      throws GeneralSecurityException {
+    return new ProtoSignature(
+        "1.2.840.10045.4.3.2",
+        keyPair,
+        "org.dpppt.test",
+        "org.dpppt.test",
+        "v1",
+        "228",
+        "ch",
+        Duration.ofHours(2),
+        new KeyFragmentCache(1000),
+        maxKeysPerBatch,
+        signingExecutor,
+        new SigningEngine("test", "SHA256withECDSA", keyPair.getPrivate(), ""));
+  }
+
+  private static List<GaenKey> createKeys(UTCInstant keyDate, int count) {
+    var keys = new ArrayList<GaenKey>();
+    var rollingStartNumber = (int) keyDate.get10MinutesSince1970();
+    for (int i = 0; i < count; i++) {
+      var keyData = new byte[16];
+      keyData[0] = (byte) i;
+      keyData[15] = (byte) (i >> 8);
+      keys.add(
+          new GaenKey(Base64.getEncoder().encodeToString(keyData), rollingStartNumber, 144, i % 8));
+    }
+    return keys;
+  }
+
+  private static Map<String, byte[]> unzip(byte[] zip) throws Exception {
+    var entries = new LinkedHashMap<String, byte[]>();
+    try (var in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+      for (var entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+        entries.put(entry.getName(), in.readAllBytes());
+      }
+    }
+    return entries;
+  }
+
+  @Test
+  public void testExportIsEqualToProtobufBuilder() throws Exception {
+    var keyDate = UTCInstant.parseDate("2020-10-01");
+    var keys = createKeys(keyDate, 300);
+
+    var expected = TemporaryExposureKeyFormat.TemporaryExposureKeyExport.newBuilder();
+    var startTimestamp = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
+    expected
+        .setStartTimestamp(startTimestamp.toSeconds())
+        .setEndTimestamp(startTimestamp.toSeconds() + Duration.ofHours(2).toSeconds())
+        .setRegion("ch")
+        .setBatchNum(1)
+        .setBatchSize(1)
+        .addSignatureInfos(
+            TemporaryExposureKeyFormat.SignatureInfo.newBuilder()
+                .setAppBundleId("org.dpppt.test")
+                .setVerificationKeyVersion("v1")
+                .setVerificationKeyId("228")
+                .setSignatureAlgorithm("1.2.840.10045.4.3.2"));
+    for (var key : keys) {
+      expected.addKeys(
+          TemporaryExposureKeyFormat.TemporaryExposureKey.newBuilder()
+              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
+              .setRollingPeriod(key.getRollingPeriod())
+              .setRollingStartIntervalNumber(key.getRollingStartNumber())
+              .setTransmissionRiskLevel(key.getTransmissionRiskLevel()));
+    }
+    byte[] protoBytes = expected.build().toByteArray();
+    byte[] expectedBin = new byte[EXPORT_MAGIC.length + protoBytes.length];
+    System.arraycopy(EXPORT_MAGIC, 0, expectedBin, 0, EXPORT_MAGIC.length);
+    System.arraycopy(protoBytes, 0, expectedBin, EXPORT_MAGIC.length, protoBytes.length);
+
+    var payload = signer.getPayload(keys);
+    var entries = unzip(payload.getZip());
+    assertEquals(2, entries.size());
+    byte[] exportBin = entries.get("export.bin");
+    assertArrayEquals(expectedBin, exportBin);
+
+    var digest = MessageDigest.getInstance("SHA-256");
+    digest.update(exportBin);
+    digest.update(keyPair.getPublic().getEncoded());
+    assertArrayEquals(digest.digest(), payload.getHash());
+
+    var signatureList =
+        TemporaryExposureKeyFormat.TEKSignatureList.parseFrom(entries.get("export.sig"));
+    assertEquals(1, signatureList.getSignaturesCount());
+    var verifier = Signature.getInstance("SHA256withECDSA");
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update(exportBin);
+    assertTrue(verifier.verify(signatureList.getSignatures(0).getSignature().toByteArray()));
+  }
+
+  @Test
+  public void testNestedPayload() throws Exception {
+    var grouped = new HashMap<String, List<GaenKey>>();
+    grouped.put("2020-10-01", createKeys(UTCInstant.parseDate("2020-10-01"), 10));
+    grouped.put("2020-10-02", createKeys(UTCInstant.parseDate("2020-10-02"), 20));
+
+    var entries = unzip(signer.getPayload(grouped));
+    assertEquals(2, entries.size());
+    for (var group : grouped.entrySet()) {
+      var inner = unzip(entries.get("key_export_" + group.getKey()));
+      var exportBin = inner.get("export.bin");
+      var export =
+          TemporaryExposureKeyFormat.TemporaryExposureKeyExport.parseFrom(
+              ByteString.copyFrom(exportBin, EXPORT_MAGIC.length, exportBin.length - 16));
+      assertEquals(group.getValue().size(), export.getKeysCount());
+      assertTrue(inner.containsKey("export.sig"));
+    }
+  }
+
+  @Test
+  public void testLargeExportIsSplitIntoBatches() throws Exception {
+    var keyDate = UTCInstant.parseDate("2020-10-01");
+    var keys = createKeys(keyDate, 250);
+    // the time window of every batch is the one of the whole export, not of its first key
+    keys.get(100).setRollingStartNumber(keys.get(100).getRollingStartNumber() + 36);
+    var payload = createSigner(100).getPayload(keys);
+
+    var entries = unzip(payload.getZip());
+    assertEquals(3, entries.size());
+    var digest = MessageDigest.getInstance("SHA-256");
+    int exportedKeys = 0;
+    for (int batchNum = 1; batchNum <= 3; batchNum++) {
+      var inner = unzip(entries.get("key_export_2020-10-01_" + batchNum));
+      var exportBin = inner.get("export.bin");
+      var export =
+          TemporaryExposureKeyFormat.TemporaryExposureKeyExport.parseFrom(
+              ByteString.copyFrom(exportBin, EXPORT_MAGIC.length, exportBin.length - 16));
+      assertEquals(batchNum, export.getBatchNum());
+      assertEquals(3, export.getBatchSize());
+      assertEquals(keyDate.getTimestamp() / 1000, export.getStartTimestamp());
+      assertEquals(
+          export.getStartTimestamp() + Duration.ofHours(2).toSeconds(), export.getEndTimestamp());
+      assertEquals(keys.get(exportedKeys).getKeyData(), toBase64(export.getKeys(0)));
+      exportedKeys += export.getKeysCount();
+
+      var signature =
+          TemporaryExposureKeyFormat.TEKSignatureList.parseFrom(inner.get("export.sig"))
+              .getSignatures(0);
+      assertEquals(batchNum, signature.getBatchNum());
+      assertEquals(3, signature.getBatchSize());
+      var verifier = Signature.getInstance("SHA256withECDSA");
+      verifier.initVerify(keyPair.getPublic());
+      verifier.update(exportBin);
+      assertTrue(verifier.verify(signature.getSignature().toByteArray()));
+
+      var batchDigest = MessageDigest.getInstance("SHA-256");
+      batchDigest.update(exportBin);
+      batchDigest.update(keyPair.getPublic().getEncoded());
+      digest.update(batchDigest.digest());
+    }
+    assertEquals(250, exportedKeys);
+    assertArrayEquals(digest.digest(), payload.getHash());
+
+    // exports up to the limit stay a single file
+    var single = unzip(createSigner(250).getPayload(keys).getZip());
+    assertEquals(2, single.size());
+    assertTrue(single.containsKey("export.bin"));
+  }
+
+  private static String toBase64(TemporaryExposureKeyFormat.TemporaryExposureKey key) {
+    return Base64.getEncoder().encodeToString(key.getKeyData().toByteArray());
+  }
+
+  @Test
+  public void testParallelNestedPayloadMatchesSequential() throws Exception {
+    var grouped = new LinkedHashMap<String, List<GaenKey>>();
+    for (int day = 1; day <= 8; day++) {
+      var keyDate = UTCInstant.parseDate("2020-10-01").plusDays(day);
+      grouped.put(keyDate.getLocalDate().toString(), createKeys(keyDate, 50 * day));
+    }
+
+    var sequential = unzip(createSigner(200, Runnable::run).getPayload(grouped));
+    var executor = Executors.newFixedThreadPool(4);
+    Map<String, byte[]> parallel;
+    try {
+      parallel = unzip(createSigner(200, executor).getPayload(grouped));
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(new ArrayList<>(sequential.keySet()), new ArrayList<>(parallel.keySet()));
+    assertTrue(parallel.containsKey("key_export_2020-10-09_2"));
+    for (var entry : sequential.entrySet()) {
+      var expected = unzip(entry.getValue());
+      var actual = unzip(parallel.get(entry.getKey()));
+      // only the signature differs, as ECDSA uses a random nonce
+      assertArrayEquals(expected.get("export.bin"), actual.get("export.bin"));
+      var signature =
+          TemporaryExposureKeyFormat.TEKSignatureList.parseFrom(actual.get("export.sig"))
+              .getSignatures(0);
+      var verifier = Signature.getInstance("SHA256withECDSA");
+      verifier.initVerify(keyPair.getPublic());
+      verifier.update(actual.get("export.bin"));
+      assertTrue(verifier.verify(signature.getSignature().toByteArray()));
+    }
+  }
+}
@@ -23,6 +23,7 @@ import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -38,6 +39,18 @@ public class SignatureResponseWrapperTest {
 
   private MockHttpServletResponse response;
 
+  private static SigningEngine signingEngine(KeyPair keyPair) {
+    try {
+      return new SigningEngine(
+          "test",
+          SignatureAlgorithm.forSigningKey(keyPair.getPrivate()).getJcaName(),
+          keyPair.getPrivate(),
+          "");
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   @Test
   public void testSignaturResponseWrapper() throws IOException, NoSuchAlgorithmException {
 
@@ -47,7 +60,8 @@ public class SignatureResponseWrapperTest {
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     String digest = response.getHeader("Digest");
@@ -68,7 +82,8 @@ public class SignatureResponseWrapperTest {
 
     List<String> protectedHeaders = new ArrayList<String>();
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     String rawJWT = response.getHeader("Signature");
@@ -77,7 +92,8 @@ public class SignatureResponseWrapperTest {
     response = new MockHttpServletResponse();
     response.setStatus(204);
     signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     rawJWT = response.getHeader("Signature");
@@ -86,7 +102,8 @@ public class SignatureResponseWrapperTest {
     response = new MockHttpServletResponse();
     response.setStatus(304);
     signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     rawJWT = response.getHeader("Signature");
@@ -101,7 +118,8 @@ public class SignatureResponseWrapperTest {
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     OutputStream stream = OutputStream.nullOutputStream();
     signatureResponseWrapper.outputData(stream);
@@ -123,7 +141,8 @@ public class SignatureResponseWrapperTest {
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     String digest = response.getHeader("Digest");
@@ -145,7 +164,8 @@ public class SignatureResponseWrapperTest {
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     OutputStream stream = OutputStream.nullOutputStream();
     signatureResponseWrapper.outputData(stream);
@@ -167,7 +187,8 @@ public class SignatureResponseWrapperTest {
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
 
@@ -186,7 +207,8 @@ public class SignatureResponseWrapperTest {
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, false);
+        new SignatureResponseWrapper(
+            response, keyPair, signingEngine(keyPair), 21, protectedHeaders, false);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
 
@@ -196,4 +218,32 @@ public class SignatureResponseWrapperTest {
     String publicKey = response.getHeader("X-Public-Key");
     assertNull(publicKey);
   }
+
+  @Test
+  public void testAlgorithmIsChosenFromKey() throws Exception {
+    for (var algorithm :
+        List.of(SignatureAlgorithm.ES384, SignatureAlgorithm.ES512, SignatureAlgorithm.RS256)) {
+      response = new MockHttpServletResponse();
+      KeyPair keyPair = Keys.keyPairFor(algorithm);
+      SignatureResponseWrapper signatureResponseWrapper =
+          new SignatureResponseWrapper(
+              response, keyPair, signingEngine(keyPair), 21, List.of(), false);
+      signatureResponseWrapper.getOutputStream().print("TEST");
+      signatureResponseWrapper.flushBuffer();
+
+      var jws =
+          Jwts.parserBuilder()
+              .setSigningKey(keyPair.getPublic())
+              .build()
+              .parseClaimsJws(response.getHeader("Signature"));
+      assertEquals(algorithm.getValue(), jws.getHeader().getAlgorithm());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEngineMustMatchKey() throws Exception {
+    KeyPair keyPair = Keys.keyPairFor(SignatureAlgorithm.ES384);
+    var engine = new SigningEngine("test", "SHA256withECDSA", keyPair.getPrivate(), "");
+    SignatureResponseWrapper.jwsAlgorithm(keyPair, engine);
+  }
 }
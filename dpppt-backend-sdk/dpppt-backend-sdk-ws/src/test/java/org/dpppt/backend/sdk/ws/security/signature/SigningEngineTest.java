@@ -0,0 +1,78 @@
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SigningEngineTest {
+
+  private static final byte[] DATA = "EK Export v1    ".getBytes(StandardCharsets.UTF_8);
+
+  private KeyPair keyPair;
+
+  @Before
+  public void setUp() throws Exception {
+    var generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    keyPair = generator.generateKeyPair();
+  }
+
+  private boolean verify(byte[] signature) throws Exception {
+    var verifier = Signature.getInstance("SHA256withECDSA");
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update(DATA);
+    return verifier.verify(signature);
+  }
+
+  @Test
+  public void testSignaturesAreReusedPerThread() throws Exception {
+    var engine = new SigningEngine("test", "SHA256withECDSA", keyPair.getPrivate(), "");
+    var signature = engine.getSignature();
+    // an aborted signing must not leak into the next one
+    signature.update(new byte[] {1, 2, 3});
+    assertSame(signature, engine.getSignature());
+
+    assertTrue(verify(engine.sign(DATA)));
+    assertTrue(verify(engine.sign(DATA)));
+    assertEquals(2, engine.getSignatureCount());
+
+    var registry = new SimpleMeterRegistry();
+    engine.bindTo(registry);
+    assertEquals(
+        2.0, registry.get("dp3t.signatures").tag("engine", "test").functionCounter().count(), 0);
+  }
+
+  @Test
+  public void testSelectableProvider() throws Exception {
+    var sunEc = new SigningEngine("test", "SHA256withECDSA", keyPair.getPrivate(), "SunEC");
+    assertEquals("SunEC", sunEc.getProviderName());
+    assertTrue(verify(sunEc.sign(DATA)));
+
+    var bouncyCastle = new SigningEngine("test", "SHA256withECDSA", keyPair.getPrivate(), "BC");
+    assertEquals("BC", bouncyCastle.getProviderName());
+    assertTrue(verify(bouncyCastle.sign(DATA)));
+  }
+
+  @Test
+  public void testDerToConcat() throws Exception {
+    var engine = new SigningEngine("test", "SHA256withECDSA", keyPair.getPrivate(), "");
+    var verifier = Signature.getInstance("SHA256withECDSAinP1363Format");
+    // leading zeros are stripped from R and S in DER, so sign often enough to hit short values
+    for (int i = 0; i < 200; i++) {
+      byte[] concat = SigningEngine.derToConcat(engine.sign(DATA), 64);
+      assertEquals(64, concat.length);
+      verifier.initVerify(keyPair.getPublic());
+      verifier.update(DATA);
+      assertTrue(verifier.verify(concat));
+    }
+  }
+}
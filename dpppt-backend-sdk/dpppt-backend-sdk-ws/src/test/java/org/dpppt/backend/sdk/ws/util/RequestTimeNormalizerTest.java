@@ -0,0 +1,62 @@
+package org.dpppt.backend.sdk.ws.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestTimeNormalizerTest {
+
+  private RequestTimeNormalizer normalizer;
+
+  @Before
+  public void setUp() {
+    normalizer = new RequestTimeNormalizer(1);
+  }
+
+  @After
+  public void tearDown() {
+    normalizer.shutdown();
+  }
+
+  @Test
+  public void testResponseIsDelayedUntilRequestTime() throws Exception {
+    var start = UTCInstant.now();
+    var future = normalizer.normalize(start, Duration.ofMillis(300), "OK");
+    assertFalse(future.isDone());
+    assertEquals("OK", future.get(5, TimeUnit.SECONDS));
+    assertFalse(UTCInstant.now().isBeforeEpochMillisOf(start.plus(Duration.ofMillis(300))));
+  }
+
+  @Test
+  public void testExpiredRequestTimeCompletesImmediately() {
+    var start = UTCInstant.now().minus(Duration.ofSeconds(2));
+    var future = normalizer.normalize(start, Duration.ofSeconds(1), "OK");
+    assertTrue(future.isDone());
+  }
+
+  @Test
+  public void testConcurrentRequestsDontWaitForEachOther() throws Exception {
+    var requestTime = Duration.ofMillis(500);
+    var start = UTCInstant.now();
+    List<CompletableFuture<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      futures.add(normalizer.normalize(UTCInstant.now(), requestTime, i));
+    }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+    // a single timer thread serves all requests, which would take 5000 * 500ms if they slept
+    assertTrue(UTCInstant.now().isBeforeEpochMillisOf(start.plus(Duration.ofSeconds(5))));
+    for (int i = 0; i < futures.size(); i++) {
+      assertEquals(i, futures.get(i).join().intValue());
+    }
+  }
+}
@@ -57,6 +57,13 @@ public class TestJDBCGaen {
     return jt.query(sql, params, new GaenKeyRowMapper());
   }
 
+  @Transactional(readOnly = false)
+  public void deleteExposeesReceivedAt(UTCInstant receivedAt) {
+    MapSqlParameterSource params = new MapSqlParameterSource();
+    params.addValue("received_at", receivedAt.getDate());
+    jt.update("delete from t_gaen_exposed where received_at = :received_at", params);
+  }
+
   @Transactional(readOnly = false)
   public void upsertExposees(List<GaenKey> gaenKeys, UTCInstant receivedAt) {
     String sql = null;
@@ -68,7 +75,7 @@ public class TestJDBCGaen {
               + " constraint gaen_exposed_key do nothing";
     } else {
       sql =
-          "merge into t_gaen_exposed using (values(cast(:key as varchar(24)),"
+          "merge into t_gaen_exposed using (values(cast(:key as varbinary(16)),"
               + " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at))"
               + " as vals(key, rolling_start_number, rolling_period, transmission_risk_level,"
               + " received_at) on t_gaen_exposed.key = vals.key when not matched then insert (key,"
@@ -79,7 +86,7 @@ public class TestJDBCGaen {
     var parameterList = new ArrayList<MapSqlParameterSource>();
     for (var gaenKey : gaenKeys) {
       MapSqlParameterSource params = new MapSqlParameterSource();
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());
@@ -100,7 +107,7 @@ public class TestJDBCGaen {
               + " 'test') on conflict on constraint debug_gaen_exposed_key do nothing";
     } else {
       sql =
-          "merge into t_debug_gaen_exposed using (values(cast(:key as varchar(24)),"
+          "merge into t_debug_gaen_exposed using (values(cast(:key as varbinary(16)),"
               + " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at,"
               + " 'test')) as vals(key, rolling_start_number, rolling_period,"
               + " transmission_risk_level, received_at, device_name) on t_debug_gaen_exposed.key ="
@@ -112,7 +119,7 @@ public class TestJDBCGaen {
     var parameterList = new ArrayList<MapSqlParameterSource>();
     for (var gaenKey : gaenKeys) {
       MapSqlParameterSource params = new MapSqlParameterSource();
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());
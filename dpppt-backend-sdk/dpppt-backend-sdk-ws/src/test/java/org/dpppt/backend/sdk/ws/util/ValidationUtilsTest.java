@@ -3,6 +3,7 @@ package org.dpppt.backend.sdk.ws.util;
 import static org.junit.Assert.assertEquals;
 
 import java.time.Duration;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.junit.Test;
 
@@ -22,4 +23,26 @@ public class ValidationUtilsTest {
 
     assertEquals(true, UTCInstant.today().hasSameDateAs(midnight));
   }
+
+  @Test
+  public void testKeyFormatUsesDecodedKey() throws Exception {
+    var validationUtils =
+        new ValidationUtils(16, Duration.ofDays(14), Duration.ofHours(2).toMillis());
+    var key = new GaenKey("AAECAwQFBgcICQoLDA0ODw==", 2650000, 144, 0);
+    assertEquals(true, validationUtils.isValidKeyFormat(key));
+    assertEquals(16, key.getKeyBytes().length);
+    assertEquals(15, key.getKeyBytes()[15]);
+
+    key.setKeyData("AAECAwQFBgcICQoLDA0O");
+    assertEquals(false, validationUtils.isValidKeyFormat(key));
+    key.setKeyData("not base64 at all!!!!!==");
+    assertEquals(false, validationUtils.isValidKeyFormat(key));
+    assertEquals("not base64 at all!!!!!==", key.getKeyData());
+
+    // keys read from the database only carry the binary form
+    var stored = new GaenKey();
+    stored.setKeyBytes(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15});
+    assertEquals(true, validationUtils.isValidKeyFormat(stored));
+    assertEquals("AAECAwQFBgcICQoLDA0ODw==", stored.getKeyData());
+  }
 }